@@ -0,0 +1,314 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar;
+
+import glade.grammar.GrammarUtils.AlternationNode;
+import glade.grammar.GrammarUtils.ConstantNode;
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.GrammarUtils.MultiAlternationNode;
+import glade.grammar.GrammarUtils.MultiConstantNode;
+import glade.grammar.GrammarUtils.Node;
+import glade.grammar.GrammarUtils.NodeData;
+import glade.grammar.GrammarUtils.NodeMerges;
+import glade.grammar.GrammarUtils.RepetitionNode;
+import glade.util.CharacterSet;
+import glade.util.CharacterUtils;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// An immutable, array-backed copy of a grammar. Nodes are numbered in preorder (shared nodes once), children
+// and merges are stored as index arrays, and the characters of every position of a multi-constant both as a
+// bitset over the alphabet and as a dense array in the original order, so that traversals and sampling do not
+// allocate.
+public class CompactGrammar {
+	public static final byte CONSTANT = 0;
+	public static final byte MULTI_CONSTANT = 1;
+	public static final byte ALTERNATION = 2;
+	public static final byte MULTI_ALTERNATION = 3;
+	public static final byte REPETITION = 4;
+
+	private final int root;
+	private final byte[] kinds;
+	private final NodeData[] data;
+	private final Node[] nodes;
+	private final Map<Node,Integer> ids = new IdentityHashMap<Node,Integer>();
+
+	// children of node i are children[childOffsets[i], childOffsets[i+1]), likewise for merges and positions
+	private final int[] childOffsets;
+	private final int[] children;
+	private final int[] mergeOffsets;
+	private final int[] merges;
+	private final int[] positionOffsets;
+
+	// per position: words [p*numWords, (p+1)*numWords) of the bitset, characters [offsets[p], offsets[p+1])
+	private final int numWords;
+	private final long[] optionBits;
+	private final long[] checkBits;
+	private final int[] optionOffsets;
+	private final int[] checkOffsets;
+	private final char[] optionCharacters;
+	private final char[] checkCharacters;
+
+	public CompactGrammar(Grammar grammar) {
+		List<Node> order = new ArrayList<Node>();
+		this.number(grammar.node, order);
+		int numNodes = order.size();
+		this.root = 0;
+		this.kinds = new byte[numNodes];
+		this.data = new NodeData[numNodes];
+		this.nodes = order.toArray(new Node[numNodes]);
+		this.childOffsets = new int[numNodes+1];
+		this.mergeOffsets = new int[numNodes+1];
+		this.positionOffsets = new int[numNodes+1];
+		int numChildren = 0;
+		int numMerges = 0;
+		int numPositions = 0;
+		int numOptions = 0;
+		int numChecks = 0;
+		int maxCharacter = -1;
+		for(int i=0; i<numNodes; i++) {
+			Node node = order.get(i);
+			this.kinds[i] = getKind(node);
+			this.data[i] = node.getData();
+			numChildren += node.getChildren().size();
+			int mergeId = grammar.merges.getId(node);
+			numMerges += mergeId == -1 ? 0 : grammar.merges.getNumMerges(mergeId);
+			if(node instanceof MultiConstantNode) {
+				MultiConstantNode mconstNode = (MultiConstantNode)node;
+				numPositions += mconstNode.characterOptions.size();
+				for(int j=0; j<mconstNode.characterOptions.size(); j++) {
+					numOptions += mconstNode.characterOptions.get(j).size();
+					numChecks += mconstNode.characterChecks.get(j).size();
+					maxCharacter = Math.max(maxCharacter, mconstNode.characterOptions.get(j).lastCharacter());
+					maxCharacter = Math.max(maxCharacter, mconstNode.characterChecks.get(j).lastCharacter());
+				}
+			}
+		}
+		for(int i=0; i<grammar.merges.size(); i++) {
+			if(!this.ids.containsKey(grammar.merges.getNode(i))) {
+				throw new RuntimeException("Invalid node: " + grammar.merges.getNode(i));
+			}
+		}
+		this.children = new int[numChildren];
+		this.merges = new int[numMerges];
+		// seeds may contain characters outside the alphabet
+		this.numWords = (Math.max(CharacterUtils.getNumberOfCharacters(), maxCharacter + 1) + 63)/64;
+		this.optionBits = new long[numPositions*this.numWords];
+		this.checkBits = new long[numPositions*this.numWords];
+		this.optionOffsets = new int[numPositions+1];
+		this.checkOffsets = new int[numPositions+1];
+		this.optionCharacters = new char[numOptions];
+		this.checkCharacters = new char[numChecks];
+		int child = 0;
+		int merge = 0;
+		int position = 0;
+		for(int i=0; i<numNodes; i++) {
+			Node node = order.get(i);
+			for(Node cur : node.getChildren()) {
+				this.children[child++] = this.ids.get(cur);
+			}
+			int mergeId = grammar.merges.getId(node);
+			for(int j=0; mergeId != -1 && j<grammar.merges.getNumMerges(mergeId); j++) {
+				this.merges[merge++] = this.ids.get(grammar.merges.getNode(grammar.merges.getMerge(mergeId, j)));
+			}
+			if(node instanceof MultiConstantNode) {
+				MultiConstantNode mconstNode = (MultiConstantNode)node;
+				for(int j=0; j<mconstNode.characterOptions.size(); j++) {
+					this.optionOffsets[position+1] = this.add(position, mconstNode.characterOptions.get(j), this.optionBits, this.optionCharacters, this.optionOffsets[position]);
+					this.checkOffsets[position+1] = this.add(position, mconstNode.characterChecks.get(j), this.checkBits, this.checkCharacters, this.checkOffsets[position]);
+					position++;
+				}
+			}
+			this.childOffsets[i+1] = child;
+			this.mergeOffsets[i+1] = merge;
+			this.positionOffsets[i+1] = position;
+		}
+	}
+
+	private void number(Node node, List<Node> order) {
+		if(this.ids.containsKey(node)) {
+			return;
+		}
+		this.ids.put(node, order.size());
+		order.add(node);
+		for(Node child : node.getChildren()) {
+			this.number(child, order);
+		}
+	}
+
+	private int add(int position, CharacterSet characters, long[] bits, char[] dense, int offset) {
+		for(int i=0; i<characters.size(); i++) {
+			char c = characters.get(i);
+			bits[position*this.numWords + (c >>> 6)] |= 1L << c;
+			dense[offset++] = c;
+		}
+		return offset;
+	}
+
+	private static byte getKind(Node node) {
+		if(node instanceof MultiConstantNode) {
+			return MULTI_CONSTANT;
+		} else if(node instanceof ConstantNode) {
+			return CONSTANT;
+		} else if(node instanceof AlternationNode) {
+			return ALTERNATION;
+		} else if(node instanceof MultiAlternationNode) {
+			return MULTI_ALTERNATION;
+		} else if(node instanceof RepetitionNode) {
+			return REPETITION;
+		} else {
+			throw new RuntimeException("Invalid node type: " + node.getClass().getName());
+		}
+	}
+
+	public int size() {
+		return this.kinds.length;
+	}
+
+	public int getRoot() {
+		return this.root;
+	}
+
+	public byte getKind(int node) {
+		return this.kinds[node];
+	}
+
+	public NodeData getData(int node) {
+		return this.data[node];
+	}
+
+	// the node of the grammar this was built from
+	public Node getNode(int node) {
+		return this.nodes[node];
+	}
+
+	// -1 if the node is not part of the grammar
+	public int getId(Node node) {
+		Integer id = this.ids.get(node);
+		return id == null ? -1 : id;
+	}
+
+	public int getNumChildren(int node) {
+		return this.childOffsets[node+1] - this.childOffsets[node];
+	}
+
+	// start, rep and end for repetitions, first and second for alternations
+	public int getChild(int node, int index) {
+		return this.children[this.childOffsets[node] + index];
+	}
+
+	public int getNumMerges(int node) {
+		return this.mergeOffsets[node+1] - this.mergeOffsets[node];
+	}
+
+	public int getMerge(int node, int index) {
+		return this.merges[this.mergeOffsets[node] + index];
+	}
+
+	public int getNumPositions(int node) {
+		return this.positionOffsets[node+1] - this.positionOffsets[node];
+	}
+
+	public int getNumOptions(int node, int position) {
+		int p = this.positionOffsets[node] + position;
+		return this.optionOffsets[p+1] - this.optionOffsets[p];
+	}
+
+	public char getOption(int node, int position, int index) {
+		return this.optionCharacters[this.optionOffsets[this.positionOffsets[node] + position] + index];
+	}
+
+	public boolean isOption(int node, int position, char c) {
+		return this.isSet(this.optionBits, this.positionOffsets[node] + position, c);
+	}
+
+	public int getNumChecks(int node, int position) {
+		int p = this.positionOffsets[node] + position;
+		return this.checkOffsets[p+1] - this.checkOffsets[p];
+	}
+
+	public char getCheck(int node, int position, int index) {
+		return this.checkCharacters[this.checkOffsets[this.positionOffsets[node] + position] + index];
+	}
+
+	public boolean isCheck(int node, int position, char c) {
+		return this.isSet(this.checkBits, this.positionOffsets[node] + position, c);
+	}
+
+	private boolean isSet(long[] bits, int position, char c) {
+		int word = c >>> 6;
+		return word < this.numWords && (bits[position*this.numWords + word] & (1L << c)) != 0;
+	}
+
+	// builds new nodes from the arrays, so the grammar shares nothing with the original but the node data
+	public Grammar toGrammar() {
+		Node[] newNodes = new Node[this.size()];
+		Node newRoot = this.toNode(this.root, newNodes);
+		NodeMerges newMerges = new NodeMerges();
+		for(int i=0; i<this.size(); i++) {
+			for(int j=0; j<this.getNumMerges(i); j++) {
+				newMerges.add(this.toNode(i, newNodes), this.toNode(this.getMerge(i, j), newNodes));
+			}
+		}
+		return new Grammar(newRoot, newMerges);
+	}
+
+	private Node toNode(int node, Node[] newNodes) {
+		if(newNodes[node] != null) {
+			return newNodes[node];
+		}
+		List<Node> newChildren = new ArrayList<Node>();
+		for(int i=0; i<this.getNumChildren(node); i++) {
+			newChildren.add(this.toNode(this.getChild(node, i), newNodes));
+		}
+		switch(this.kinds[node]) {
+		case CONSTANT:
+			newNodes[node] = new ConstantNode(this.data[node]);
+			break;
+		case MULTI_CONSTANT:
+			List<List<Character>> characterOptions = new ArrayList<List<Character>>();
+			List<List<Character>> characterChecks = new ArrayList<List<Character>>();
+			for(int i=0; i<this.getNumPositions(node); i++) {
+				List<Character> options = new ArrayList<Character>();
+				for(int j=0; j<this.getNumOptions(node, i); j++) {
+					options.add(this.getOption(node, i, j));
+				}
+				characterOptions.add(options);
+				List<Character> checks = new ArrayList<Character>();
+				for(int j=0; j<this.getNumChecks(node, i); j++) {
+					checks.add(this.getCheck(node, i, j));
+				}
+				characterChecks.add(checks);
+			}
+			newNodes[node] = new MultiConstantNode(this.data[node], characterOptions, characterChecks);
+			break;
+		case ALTERNATION:
+			newNodes[node] = new AlternationNode(this.data[node], newChildren.get(0), newChildren.get(1));
+			break;
+		case MULTI_ALTERNATION:
+			newNodes[node] = new MultiAlternationNode(this.data[node], newChildren);
+			break;
+		case REPETITION:
+			newNodes[node] = new RepetitionNode(this.data[node], newChildren.get(0), newChildren.get(1), newChildren.get(2));
+			break;
+		default:
+			throw new RuntimeException("Invalid node kind: " + this.kinds[node]);
+		}
+		return newNodes[node];
+	}
+}
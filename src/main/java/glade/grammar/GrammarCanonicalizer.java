@@ -0,0 +1,167 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar;
+
+import glade.grammar.GrammarUtils.AlternationNode;
+import glade.grammar.GrammarUtils.ConstantNode;
+import glade.grammar.GrammarUtils.Context;
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.GrammarUtils.MultiAlternationNode;
+import glade.grammar.GrammarUtils.MultiConstantNode;
+import glade.grammar.GrammarUtils.Node;
+import glade.grammar.GrammarUtils.NodeMerges;
+import glade.grammar.GrammarUtils.RepetitionNode;
+import glade.util.CharacterSet;
+import glade.util.OracleUtils.QueryHash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Hash-conses structurally equal subtrees into a single shared node. Nodes are equal if they have the same
+// type, the same (canonical) children and the same characters, and the shared node keeps the data of the first
+// one. A merge applies to every occurrence of a node, so merged nodes are never shared with other nodes, and
+// neither are their ancestors. Unless contexts are stripped, nodes must also have equal contexts: learn --base
+// checks new merges in the context of the shared node, which then has to be the context of every occurrence.
+public class GrammarCanonicalizer {
+	private static class Key {
+		private final Class<?> type;
+		private final int[] children;
+		private final String example;
+		private final List<CharacterSet> characterOptions;
+		private final List<CharacterSet> characterChecks;
+		private final List<QueryHash> context;
+		private final int hashCode;
+		private Key(Node node, int[] children, boolean stripContexts) {
+			this.type = node.getClass();
+			this.children = children;
+			this.example = node instanceof ConstantNode ? node.getData().getExample() : null;
+			this.characterOptions = node instanceof MultiConstantNode ? ((MultiConstantNode)node).characterOptions : Collections.<CharacterSet>emptyList();
+			this.characterChecks = node instanceof MultiConstantNode ? ((MultiConstantNode)node).characterChecks : Collections.<CharacterSet>emptyList();
+			this.context = stripContexts ? Collections.<QueryHash>emptyList() : getContextKey(node.getData().getContext());
+			int hashCode = this.type.hashCode();
+			hashCode = 31*hashCode + Arrays.hashCode(this.children);
+			hashCode = 31*hashCode + (this.example == null ? 0 : this.example.hashCode());
+			hashCode = 31*hashCode + this.characterOptions.hashCode();
+			hashCode = 31*hashCode + this.characterChecks.hashCode();
+			hashCode = 31*hashCode + this.context.hashCode();
+			this.hashCode = hashCode;
+		}
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key)other;
+			return this.hashCode == key.hashCode
+				&& this.type == key.type
+				&& Arrays.equals(this.children, key.children)
+				&& (this.example == null ? key.example == null : this.example.equals(key.example))
+				&& this.characterOptions.equals(key.characterOptions)
+				&& this.characterChecks.equals(key.characterChecks)
+				&& this.context.equals(key.context);
+		}
+		@Override
+		public int hashCode() {
+			return this.hashCode;
+		}
+	}
+
+	// hashes instead of the strings, which may be as long as the seed
+	private static List<QueryHash> getContextKey(Context context) {
+		if(context == null) {
+			return Collections.<QueryHash>emptyList();
+		}
+		return Arrays.asList(QueryHash.of(context.getPre()), QueryHash.of(context.getPost()), QueryHash.of(context.getExtraPre()), QueryHash.of(context.getExtraPost()));
+	}
+
+	private final NodeMerges merges;
+	private final boolean stripContexts;
+	private final Map<Node,Node> canonicalNodes = new IdentityHashMap<Node,Node>();
+	private final Map<Node,Integer> ids = new IdentityHashMap<Node,Integer>();
+	private final Map<Key,Node> table = new HashMap<Key,Node>();
+
+	private GrammarCanonicalizer(NodeMerges merges, boolean stripContexts) {
+		this.merges = merges;
+		this.stripContexts = stripContexts;
+	}
+
+	// -1 for nodes that must not be shared
+	private int canonicalize(Node node) {
+		Node canonicalNode = this.canonicalNodes.get(node);
+		if(canonicalNode != null) {
+			return this.ids.get(canonicalNode);
+		}
+		List<Node> children = node.getChildren();
+		List<Node> newChildren = new ArrayList<Node>();
+		int[] childIds = new int[children.size()];
+		boolean isShared = this.merges.getId(node) == -1;
+		for(int i=0; i<children.size(); i++) {
+			childIds[i] = this.canonicalize(children.get(i));
+			newChildren.add(this.canonicalNodes.get(children.get(i)));
+			isShared = isShared && childIds[i] != -1;
+		}
+		Key key = isShared ? new Key(node, childIds, this.stripContexts) : null;
+		canonicalNode = key == null ? null : this.table.get(key);
+		if(canonicalNode == null) {
+			canonicalNode = newChildren.equals(children) ? node : getNode(node, newChildren);
+			if(key != null) {
+				this.table.put(key, canonicalNode);
+				this.ids.put(canonicalNode, this.table.size()-1);
+			} else {
+				this.ids.put(canonicalNode, -1);
+			}
+		}
+		this.canonicalNodes.put(node, canonicalNode);
+		return this.ids.get(canonicalNode);
+	}
+
+	private static Node getNode(Node node, List<Node> newChildren) {
+		if(node instanceof AlternationNode) {
+			return new AlternationNode(node.getData(), newChildren.get(0), newChildren.get(1));
+		} else if(node instanceof MultiAlternationNode) {
+			return new MultiAlternationNode(node.getData(), newChildren);
+		} else if(node instanceof RepetitionNode) {
+			return new RepetitionNode(node.getData(), newChildren.get(0), newChildren.get(1), newChildren.get(2));
+		} else {
+			throw new RuntimeException("Invalid node type: " + node.getClass().getName());
+		}
+	}
+
+	private Node getCanonicalNode(Node node) {
+		Node canonicalNode = this.canonicalNodes.get(node);
+		if(canonicalNode == null) {
+			throw new RuntimeException("Invalid node: " + node);
+		}
+		return canonicalNode;
+	}
+
+	public static Grammar getCanonicalGrammar(Grammar grammar, boolean stripContexts) {
+		GrammarCanonicalizer canonicalizer = new GrammarCanonicalizer(grammar.merges, stripContexts);
+		canonicalizer.canonicalize(grammar.node);
+		NodeMerges newMerges = new NodeMerges();
+		for(int i=0; i<grammar.merges.size(); i++) {
+			Node first = canonicalizer.getCanonicalNode(grammar.merges.getNode(i));
+			for(int j=0; j<grammar.merges.getNumMerges(i); j++) {
+				newMerges.add(first, canonicalizer.getCanonicalNode(grammar.merges.getNode(grammar.merges.getMerge(i, j))));
+			}
+		}
+		return new Grammar(canonicalizer.getCanonicalNode(grammar.node), newMerges);
+	}
+}
@@ -24,16 +24,22 @@ import glade.grammar.GrammarUtils.Node;
 import glade.grammar.GrammarUtils.NodeData;
 import glade.grammar.GrammarUtils.NodeMerges;
 import glade.grammar.GrammarUtils.RepetitionNode;
+import glade.util.CharacterSet;
 import glade.util.CharacterUtils;
-import glade.util.Utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class GrammarSerializer {
 	public static void serialize(String string, DataOutputStream dos) throws IOException {
@@ -48,7 +54,10 @@ public class GrammarSerializer {
 	}
 
 	public static String deserializeString(DataInputStream dis) throws IOException {
-		int length = dis.readInt();
+		return deserializeString(dis.readInt(), dis);
+	}
+
+	private static String deserializeString(int length, DataInputStream dis) throws IOException {
 		if(length == -1) {
 			return null;
 		} else {
@@ -60,77 +69,270 @@ public class GrammarSerializer {
 		}
 	}
 
+	// mark strings and contexts written as references into the context table
+	private static final int CONTEXT_REFERENCE = -2;
+	private static final int SOURCE_REFERENCE = -3;
+
+	// Contexts share their sources, the examples they were split from, so a grammar stores every source
+	// once and every context as its parent, its source and four offsets into the source.
+	private static class ContextTable {
+		private final List<String> sources = new ArrayList<String>();
+		private final List<Context> contexts = new ArrayList<Context>();
+		private final Map<String,Integer> sourceIds = new LinkedHashMap<String,Integer>();
+		private final Map<Context,Integer> contextIds = new LinkedHashMap<Context,Integer>();
+		// parents are added before their children
+		private void add(Context context) {
+			if(this.contextIds.containsKey(context)) {
+				return;
+			}
+			if(context.parent != null) {
+				this.add(context.parent);
+				this.addSource(context.source);
+			}
+			this.contextIds.put(context, this.contexts.size());
+			this.contexts.add(context);
+		}
+		private void addSource(String source) {
+			if(!this.sourceIds.containsKey(source)) {
+				this.sourceIds.put(source, this.sources.size());
+				this.sources.add(source);
+			}
+		}
+	}
+
 	public static void serialize(NodeData data, DataOutputStream dos) throws IOException {
-		serialize(data.example, dos);
-		serialize(data.context.pre, dos);
-		serialize(data.context.post, dos);
-		serialize(data.context.extraPre, dos);
-		serialize(data.context.extraPost, dos);
+		serialize(data.getExample(), dos);
+		serialize(data.getContext().getPre(), dos);
+		serialize(data.getContext().getPost(), dos);
+		serialize(data.getContext().getExtraPre(), dos);
+		serialize(data.getContext().getExtraPost(), dos);
 	}
 
 	public static NodeData deserializeNodeData(DataInputStream dis) throws IOException {
-		String example = deserializeString(dis);
-		String pre = deserializeString(dis);
+		return deserializeNodeData(dis, new ContextTable());
+	}
+
+	private static NodeData deserializeNodeData(DataInputStream dis, ContextTable table) throws IOException {
+		int exampleLength = dis.readInt();
+		String example = exampleLength == SOURCE_REFERENCE ? table.sources.get(dis.readInt()) : deserializeString(exampleLength, dis);
+		int preLength = dis.readInt();
+		if(preLength == CONTEXT_REFERENCE) {
+			return new NodeData(example, table.contexts.get(dis.readInt()));
+		}
+		String pre = deserializeString(preLength, dis);
 		String post = deserializeString(dis);
 		String extraPre = deserializeString(dis);
 		String extraPost = deserializeString(dis);
-		return new NodeData(example, new Context(new Context(), pre, post, extraPre, extraPost));
+		return new NodeData(example, new Context(pre, post, extraPre, extraPost));
+	}
+
+	private static ContextTable deserializeContexts(DataInputStream dis) throws IOException {
+		ContextTable table = new ContextTable();
+		int numSources = dis.readInt();
+		for(int i=0; i<numSources; i++) {
+			table.sources.add(deserializeString(dis));
+		}
+		int numContexts = dis.readInt();
+		for(int i=0; i<numContexts; i++) {
+			int parent = dis.readInt();
+			if(parent == -1) {
+				String pre = deserializeString(dis);
+				String post = deserializeString(dis);
+				String extraPre = deserializeString(dis);
+				String extraPost = deserializeString(dis);
+				table.contexts.add(new Context(pre, post, extraPre, extraPost));
+			} else {
+				String source = table.sources.get(dis.readInt());
+				int preEnd = dis.readInt();
+				int postBegin = dis.readInt();
+				int extraPreEnd = dis.readInt();
+				int extraPostBegin = dis.readInt();
+				table.contexts.add(new Context(table.contexts.get(parent), source, preEnd, postBegin, extraPreEnd, extraPostBegin));
+			}
+		}
+		return table;
+	}
+
+	// v2 grammars start with the magic number instead of the length of the alphabet name
+	private static final int MAGIC = 0x474c4144; // GLAD
+	private static final int VERSION = 2;
+	private static final int STRIPPED = 1;
+
+	// references to examples: null, the part of the source between the prefix and the suffix of the context,
+	// or a string of the string table (offset by EXAMPLE_STRING)
+	private static final int EXAMPLE_NULL = 0;
+	private static final int EXAMPLE_SOURCE = 1;
+	private static final int EXAMPLE_STRING = 2;
+
+	// the context of every node of a grammar saved without contexts
+	public static final Context STRIPPED_CONTEXT = new Context();
+
+	public static boolean isStripped(Grammar grammar) {
+		return grammar.node.getData().getContext() == STRIPPED_CONTEXT;
+	}
+
+	private static void writeVarint(int value, DataOutputStream dos) throws IOException {
+		while((value & ~0x7f) != 0) {
+			dos.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		dos.writeByte(value);
+	}
+
+	// characters of the ASCII and BYTE alphabets take one byte, the lowest bit of the length marks wider ones
+	private static void writeCharacters(String characters, DataOutputStream dos) throws IOException {
+		boolean isWide = false;
+		for(int i=0; i<characters.length(); i++) {
+			isWide = isWide || characters.charAt(i) > 0xff;
+		}
+		writeVarint(characters.length() << 1 | (isWide ? 1 : 0), dos);
+		for(int i=0; i<characters.length(); i++) {
+			if(isWide) {
+				dos.writeChar(characters.charAt(i));
+			} else {
+				dos.writeByte(characters.charAt(i));
+			}
+		}
+	}
+
+	// character sets are stored in the string table, in their original order
+	private static String toString(CharacterSet characters) {
+		StringBuilder sb = new StringBuilder(characters.size());
+		for(int i=0; i<characters.size(); i++) {
+			sb.append(characters.get(i));
+		}
+		return sb.toString();
+	}
+
+	private static boolean isSourceExample(NodeData data) {
+		Context context = data.getContext();
+		return context.parent != null && data.getExample().length() == context.postBegin - context.preEnd
+			&& context.source.startsWith(data.getExample(), context.preEnd);
+	}
+
+	private static int getExampleReference(NodeData data, boolean stripContexts, Map<String,Integer> stringIds) {
+		if(data.getExample() == null) {
+			return EXAMPLE_NULL;
+		} else if(!stripContexts && isSourceExample(data)) {
+			return EXAMPLE_SOURCE;
+		} else {
+			return EXAMPLE_STRING + addString(data.getExample(), stringIds);
+		}
+	}
+
+	private static int addString(String string, Map<String,Integer> stringIds) {
+		Integer id = stringIds.get(string);
+		if(id == null) {
+			id = stringIds.size();
+			stringIds.put(string, id);
+		}
+		return id;
 	}
 
 	public static void serialize(Grammar grammar, DataOutputStream dos) throws IOException {
-	    serialize(CharacterUtils.getInputAlphabet().toString(), dos); // serialize input alphabet
-		List<Node> nodes = GrammarUtils.getAllNodes(grammar.node);
-		Map<Node,Integer> nodeIds = Utils.getInverse(nodes);
-		dos.writeInt(nodes.size()); // 0
-		for(Node node : nodes) {
-			dos.writeInt(nodeIds.get(node)); // 1
-			serialize(node.getData(), dos); // 2
-			if(node instanceof ConstantNode) {
-				dos.writeInt(0); // 3/1
-			} else if(node instanceof AlternationNode) {
-				AlternationNode altNode = (AlternationNode)node;
-				dos.writeInt(1); // 3/1
-				dos.writeInt(nodeIds.get(altNode.first)); // 3/2
-				dos.writeInt(nodeIds.get(altNode.second)); // 3/3
-			} else if(node instanceof MultiAlternationNode) {
-				MultiAlternationNode maltNode = (MultiAlternationNode)node;
-				dos.writeInt(2); // 3/1
-				dos.writeInt(maltNode.getChildren().size()); // 3/2
-				for(Node child : maltNode.getChildren()) {
-					dos.writeInt(nodeIds.get(child)); // 3/3
+		serialize(grammar, false, dos);
+	}
+
+	// Writes the header, the alphabet, a table of all distinct strings, the contexts and then the nodes in
+	// preorder, with all ids, counts and offsets as varints. A grammar without contexts can still be printed
+	// and sampled, but not extended.
+	public static void serialize(Grammar grammar, boolean stripContexts, DataOutputStream dos) throws IOException {
+		CompactGrammar compactGrammar = new CompactGrammar(grammar);
+		ContextTable table = new ContextTable();
+		Map<String,Integer> stringIds = new LinkedHashMap<String,Integer>();
+		if(!stripContexts) {
+			for(int i=0; i<compactGrammar.size(); i++) {
+				table.add(compactGrammar.getData(i).getContext());
+			}
+			for(Context context : table.contexts) {
+				if(context.parent == null) {
+					addString(context.pre, stringIds);
+					addString(context.post, stringIds);
+					addString(context.extraPre, stringIds);
+					addString(context.extraPost, stringIds);
+				} else {
+					addString(context.source, stringIds);
 				}
-			} else if(node instanceof RepetitionNode) {
-				RepetitionNode repNode = (RepetitionNode)node;
-				dos.writeInt(3); // 3/1
-				dos.writeInt(nodeIds.get(repNode.start)); // 3/2
-				dos.writeInt(nodeIds.get(repNode.rep)); // 3/3
-				dos.writeInt(nodeIds.get(repNode.end)); // 3/4
-			} else if(node instanceof MultiConstantNode) {
-				MultiConstantNode mconstNode = (MultiConstantNode)node;
-				dos.writeInt(4); // 3/1
-				dos.writeInt(mconstNode.characterOptions.size()); // 3/2
-				for(int i=0; i<mconstNode.characterOptions.size(); i++) {
-					Set<Character> characterOption = mconstNode.characterOptions.get(i);
-					dos.writeInt(characterOption.size()); // 3/3
-					for(char c : characterOption) {
-						dos.writeChar(c); // 3/4
-					}
-					Set<Character> characterChecks = mconstNode.characterChecks.get(i);
-					dos.writeInt(characterChecks.size()); // 3/5
-					for(char c : characterChecks) {
-						dos.writeChar(c); // 3/6
-					}
+			}
+		}
+		int[] examples = new int[compactGrammar.size()];
+		for(int i=0; i<compactGrammar.size(); i++) {
+			examples[i] = getExampleReference(compactGrammar.getData(i), stripContexts, stringIds);
+			if(compactGrammar.getKind(i) == CompactGrammar.MULTI_CONSTANT) {
+				MultiConstantNode mconstNode = (MultiConstantNode)compactGrammar.getNode(i);
+				for(int j=0; j<mconstNode.characterOptions.size(); j++) {
+					addString(toString(mconstNode.characterOptions.get(j)), stringIds);
+					addString(toString(mconstNode.characterChecks.get(j)), stringIds);
 				}
-			} else {
-				throw new RuntimeException("Unrecognized node type: " + node.getClass().getName());
 			}
 		}
-		dos.writeInt(grammar.merges.keySet().size()); // 4
-		for(Node first : grammar.merges.keySet()) {
-			dos.writeInt(grammar.merges.get(first).size()); // 5
-			for(Node second : grammar.merges.get(first)) {
-				dos.writeInt(nodeIds.get(first)); // 6
-				dos.writeInt(nodeIds.get(second)); // 7
+		dos.writeInt(MAGIC);
+		dos.writeByte(VERSION);
+		dos.writeByte(stripContexts ? STRIPPED : 0);
+		writeCharacters(CharacterUtils.getInputAlphabet().toString(), dos);
+		writeVarint(stringIds.size(), dos);
+		for(String string : stringIds.keySet()) {
+			writeCharacters(string, dos);
+		}
+		if(!stripContexts) {
+			writeVarint(table.contexts.size(), dos);
+			for(Context context : table.contexts) {
+				if(context.parent == null) {
+					writeVarint(0, dos);
+					writeVarint(stringIds.get(context.pre), dos);
+					writeVarint(stringIds.get(context.post), dos);
+					writeVarint(stringIds.get(context.extraPre), dos);
+					writeVarint(stringIds.get(context.extraPost), dos);
+				} else {
+					writeVarint(table.contextIds.get(context.parent) + 1, dos);
+					writeVarint(stringIds.get(context.source), dos);
+					writeVarint(context.preEnd, dos);
+					writeVarint(context.postBegin, dos);
+					writeVarint(context.extraPreEnd, dos);
+					writeVarint(context.extraPostBegin, dos);
+				}
+			}
+		}
+		writeVarint(compactGrammar.size(), dos);
+		int numMerged = 0;
+		for(int i=0; i<compactGrammar.size(); i++) {
+			dos.writeByte(compactGrammar.getKind(i));
+			writeVarint(examples[i], dos);
+			if(!stripContexts) {
+				writeVarint(table.contextIds.get(compactGrammar.getData(i).getContext()), dos);
+			}
+			switch(compactGrammar.getKind(i)) {
+			case CompactGrammar.MULTI_CONSTANT:
+				MultiConstantNode mconstNode = (MultiConstantNode)compactGrammar.getNode(i);
+				writeVarint(mconstNode.characterOptions.size(), dos);
+				for(int j=0; j<mconstNode.characterOptions.size(); j++) {
+					writeVarint(stringIds.get(toString(mconstNode.characterOptions.get(j))), dos);
+					writeVarint(stringIds.get(toString(mconstNode.characterChecks.get(j))), dos);
+				}
+				break;
+			case CompactGrammar.MULTI_ALTERNATION:
+				writeVarint(compactGrammar.getNumChildren(i), dos);
+				break;
+			}
+			for(int j=0; j<compactGrammar.getNumChildren(i); j++) {
+				writeVarint(compactGrammar.getChild(i, j), dos);
+			}
+			numMerged += compactGrammar.getNumMerges(i) == 0 ? 0 : 1;
+		}
+		writeVarint(numMerged, dos);
+		for(int i=0; i<compactGrammar.size(); i++) {
+			if(compactGrammar.getNumMerges(i) != 0) {
+				writeVarint(i, dos);
+				// merges are a set, sorted so that a loaded grammar is saved to the same bytes
+				int[] merges = new int[compactGrammar.getNumMerges(i)];
+				for(int j=0; j<merges.length; j++) {
+					merges[j] = compactGrammar.getMerge(i, j);
+				}
+				Arrays.sort(merges);
+				writeVarint(merges.length, dos);
+				for(int merge : merges) {
+					writeVarint(merge, dos);
+				}
 			}
 		}
 	}
@@ -151,9 +353,9 @@ public class GrammarSerializer {
 
 	private static class MultiConstantNodeSerialization implements NodeSerialization {
 		private final NodeData data;
-		private final List<List<Character>> characterOptions;
-		private final List<List<Character>> characterChecks;
-		private MultiConstantNodeSerialization(NodeData data, List<List<Character>> characterOptions, List<List<Character>> characterChecks) {
+		private final List<CharacterSet> characterOptions;
+		private final List<CharacterSet> characterChecks;
+		private MultiConstantNodeSerialization(NodeData data, List<CharacterSet> characterOptions, List<CharacterSet> characterChecks) {
 			this.data = data;
 			this.characterOptions = characterOptions;
 			this.characterChecks = characterChecks;
@@ -235,7 +437,7 @@ public class GrammarSerializer {
 					this.nodes.set(index, new RepetitionNode(repNodeSerialization.getData(), this.deserialize(repNodeSerialization.start), this.deserialize(repNodeSerialization.rep), this.deserialize(repNodeSerialization.end)));
 				} else if(nodeSerialization instanceof MultiConstantNodeSerialization) {
 					MultiConstantNodeSerialization mconstNodeSerialization = (MultiConstantNodeSerialization)nodeSerialization;
-					return new MultiConstantNode(mconstNodeSerialization.getData(), mconstNodeSerialization.characterOptions, mconstNodeSerialization.characterChecks);
+					this.nodes.set(index, new MultiConstantNode(mconstNodeSerialization.getData(), mconstNodeSerialization.characterOptions, mconstNodeSerialization.characterChecks));
 				} else {
 					throw new RuntimeException("Unrecognized node type: " + nodeSerialization.getClass().getName());
 				}
@@ -251,15 +453,35 @@ public class GrammarSerializer {
 	}
 
 	public static Grammar deserializeNodeWithMerges(DataInputStream dis) throws IOException {
-	    CharacterUtils.init(CharacterUtils.InputAlphabet.valueOf(deserializeString(dis))); //deserialize input alphabet
+		int header = dis.readInt();
+		if(header == MAGIC) {
+			// a v2 grammar extends to the end of the stream
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] chunk = new byte[8192];
+			for(int n=dis.read(chunk); n!=-1; n=dis.read(chunk)) {
+				bytes.write(chunk, 0, n);
+			}
+			try {
+				return deserializeV2(ByteBuffer.wrap(bytes.toByteArray()));
+			} catch(BufferUnderflowException e) {
+				throw new EOFException("Incomplete grammar");
+			}
+		}
+	    CharacterUtils.init(CharacterUtils.InputAlphabet.valueOf(deserializeString(header, dis))); //deserialize input alphabet
 		int numNodes = dis.readInt(); // 0
+		ContextTable table = new ContextTable();
+		if(numNodes == CONTEXT_REFERENCE) {
+			// grammars written before the context table start directly with the number of nodes
+			table = deserializeContexts(dis); // contexts
+			numNodes = dis.readInt(); // 0
+		}
 		List<NodeSerialization> nodeSerializations = new ArrayList<NodeSerialization>(numNodes);
 		for(int i=0; i<numNodes; i++) {
 			nodeSerializations.add(null);
 		}
 		for(int i=0; i<numNodes; i++) {
 			int id = dis.readInt(); // 1
-			NodeData data = deserializeNodeData(dis); // 2
+			NodeData data = deserializeNodeData(dis, table); // 2
 			int type = dis.readInt(); // 3/1
 			if(type == 0) {
 				nodeSerializations.set(id, new ConstantNodeSerialization(data));
@@ -281,8 +503,8 @@ public class GrammarSerializer {
 				nodeSerializations.set(id, new RepetitionNodeSerialization(data, start, rep, end));
 			} else if(type == 4) {
 				int numCharacterOptions = dis.readInt(); // 3/2
-				List<List<Character>> characterOptions = new ArrayList<List<Character>>();
-				List<List<Character>> characterChecks = new ArrayList<List<Character>>();
+				List<CharacterSet> characterOptions = new ArrayList<CharacterSet>();
+				List<CharacterSet> characterChecks = new ArrayList<CharacterSet>();
 				for(int j=0; j<numCharacterOptions; j++) {
 					int numCharacterOption = dis.readInt(); // 3/3
 					List<Character> characterOption = new ArrayList<Character>();
@@ -290,14 +512,14 @@ public class GrammarSerializer {
 						char c = dis.readChar(); // 3/4
 						characterOption.add(c);
 					}
-					characterOptions.add(characterOption);
+					characterOptions.add(new CharacterSet(characterOption));
 					List<Character> characterCheck = new ArrayList<Character>();
 					int numCharacterCheck = dis.readInt(); // 3/5
 					for(int k=0; k<numCharacterCheck; k++) {
 						char c = dis.readChar(); // 3/6
 						characterCheck.add(c);
 					}
-					characterChecks.add(characterCheck);
+					characterChecks.add(new CharacterSet(characterCheck));
 				}
 				nodeSerializations.set(id, new MultiConstantNodeSerialization(data, characterOptions, characterChecks));
 			} else {
@@ -317,4 +539,223 @@ public class GrammarSerializer {
 		}
 		return new Grammar(nodes.get(0), merges);
 	}
+
+	// Reads a v1 or v2 grammar from the buffer, e.g., a mapped grammar file. A v2 grammar keeps the buffer and
+	// decodes examples and contexts only when they are accessed.
+	public static Grammar deserializeNodeWithMerges(ByteBuffer buffer) throws IOException {
+		buffer = buffer.slice();
+		if(buffer.getInt() == MAGIC) {
+			return deserializeV2(buffer.slice());
+		}
+		byte[] bytes = new byte[buffer.limit()];
+		buffer.position(0);
+		buffer.get(bytes);
+		return deserializeNodeWithMerges(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	private static int readVarint(ByteBuffer buffer) {
+		int value = 0;
+		for(int shift=0; shift<32; shift+=7) {
+			int b = buffer.get() & 0xff;
+			value |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new RuntimeException("Invalid varint");
+	}
+
+	// The strings and contexts of a v2 grammar. Only the positions of the strings and the offsets of the
+	// contexts are read when loading, strings are decoded from the buffer when they are first accessed.
+	private static class LazyTable {
+		private final ByteBuffer buffer;
+		private final int[] stringPositions;
+		private final int[] stringHeaders;
+		private final String[] strings;
+		// per context: parent (0 for roots, otherwise its id plus one), then either the ids of pre, post,
+		// extraPre and extraPost, or the id of the source and the offsets preEnd, postBegin, extraPreEnd and
+		// extraPostBegin
+		private final int[] contextRecords;
+		private final Context[] contexts;
+		private LazyTable(ByteBuffer buffer, boolean isStripped) {
+			this.buffer = buffer;
+			int numStrings = readVarint(buffer);
+			this.stringPositions = new int[numStrings];
+			this.stringHeaders = new int[numStrings];
+			this.strings = new String[numStrings];
+			for(int i=0; i<numStrings; i++) {
+				this.stringHeaders[i] = readVarint(buffer);
+				this.stringPositions[i] = buffer.position();
+				int length = this.stringHeaders[i] >>> 1 << (this.stringHeaders[i] & 1);
+				if(length > buffer.remaining()) {
+					throw new BufferUnderflowException();
+				}
+				buffer.position(buffer.position() + length);
+			}
+			int numContexts = isStripped ? 0 : readVarint(buffer);
+			this.contextRecords = new int[6*numContexts];
+			this.contexts = new Context[numContexts];
+			for(int i=0; i<numContexts; i++) {
+				int parent = readVarint(buffer);
+				this.contextRecords[6*i] = parent;
+				for(int j=1; j<(parent == 0 ? 5 : 6); j++) {
+					this.contextRecords[6*i+j] = readVarint(buffer);
+				}
+			}
+		}
+		private synchronized String getString(int id) {
+			if(this.strings[id] == null) {
+				this.strings[id] = this.getString(id, 0, this.stringHeaders[id] >>> 1);
+			}
+			return this.strings[id];
+		}
+		// decodes only the characters [begin, end) of the string
+		private String getString(int id, int begin, int end) {
+			if(this.strings[id] != null) {
+				return this.strings[id].substring(begin, end);
+			}
+			char[] characters = new char[end - begin];
+			boolean isWide = (this.stringHeaders[id] & 1) != 0;
+			for(int i=0; i<characters.length; i++) {
+				int position = this.stringPositions[id] + ((begin + i) << (isWide ? 1 : 0));
+				characters[i] = isWide ? this.buffer.getChar(position) : (char)(this.buffer.get(position) & 0xff);
+			}
+			return new String(characters);
+		}
+		private synchronized String getSourceExample(int context) {
+			int[] record = this.contextRecords;
+			return this.getString(record[6*context+1], record[6*context+2], record[6*context+3]);
+		}
+		private synchronized Context getContext(int id) {
+			if(this.contexts[id] == null) {
+				int[] record = this.contextRecords;
+				int parent = record[6*id];
+				if(parent == 0) {
+					this.contexts[id] = new Context(this.getString(record[6*id+1]), this.getString(record[6*id+2]), this.getString(record[6*id+3]), this.getString(record[6*id+4]));
+				} else {
+					this.contexts[id] = new Context(this.getContext(parent-1), this.getString(record[6*id+1]), record[6*id+2], record[6*id+3], record[6*id+4], record[6*id+5]);
+				}
+			}
+			return this.contexts[id];
+		}
+	}
+
+	private static class LazyNodeData extends NodeData {
+		private final LazyTable table;
+		private final int exampleReference;
+		private final int contextId;
+		private volatile String example;
+		private volatile Context context;
+		private LazyNodeData(LazyTable table, int exampleReference, int contextId) {
+			super(null, null);
+			this.table = table;
+			this.exampleReference = exampleReference;
+			this.contextId = contextId;
+		}
+		@Override
+		public String getExample() {
+			String example = this.example;
+			if(example == null && this.exampleReference != EXAMPLE_NULL) {
+				synchronized(this) {
+					if(this.example == null) {
+						this.example = this.exampleReference == EXAMPLE_SOURCE ? this.table.getSourceExample(this.contextId) : this.table.getString(this.exampleReference - EXAMPLE_STRING);
+					}
+					example = this.example;
+				}
+			}
+			return example;
+		}
+		@Override
+		public Context getContext() {
+			Context context = this.context;
+			if(context == null) {
+				context = this.contextId == -1 ? STRIPPED_CONTEXT : this.table.getContext(this.contextId);
+				this.context = context;
+			}
+			return context;
+		}
+	}
+
+	private static CharacterSet getCharacterSet(int id, LazyTable table, CharacterSet[] characterSets) {
+		if(characterSets[id] == null) {
+			characterSets[id] = new CharacterSet(table.getString(id).toCharArray());
+		}
+		return characterSets[id];
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int header = readVarint(buffer);
+		char[] characters = new char[header >>> 1];
+		for(int i=0; i<characters.length; i++) {
+			characters[i] = (header & 1) == 0 ? (char)(buffer.get() & 0xff) : buffer.getChar();
+		}
+		return new String(characters);
+	}
+
+	// the buffer starts after the magic number
+	private static Grammar deserializeV2(ByteBuffer buffer) {
+		int version = buffer.get() & 0xff;
+		if(version != VERSION) {
+			throw new RuntimeException("Unsupported grammar version: " + version);
+		}
+		boolean isStripped = (buffer.get() & STRIPPED) != 0;
+		CharacterUtils.init(CharacterUtils.InputAlphabet.valueOf(readString(buffer)));
+		LazyTable table = new LazyTable(buffer, isStripped);
+		// positions with the same characters share the set
+		CharacterSet[] characterSets = new CharacterSet[table.strings.length];
+		int numNodes = readVarint(buffer);
+		List<NodeSerialization> nodeSerializations = new ArrayList<NodeSerialization>(numNodes);
+		for(int i=0; i<numNodes; i++) {
+			byte kind = buffer.get();
+			int exampleReference = readVarint(buffer);
+			NodeData data = new LazyNodeData(table, exampleReference, isStripped ? -1 : readVarint(buffer));
+			switch(kind) {
+			case CompactGrammar.CONSTANT:
+				nodeSerializations.add(new ConstantNodeSerialization(data));
+				break;
+			case CompactGrammar.MULTI_CONSTANT:
+				int numPositions = readVarint(buffer);
+				List<CharacterSet> characterOptions = new ArrayList<CharacterSet>(numPositions);
+				List<CharacterSet> characterChecks = new ArrayList<CharacterSet>(numPositions);
+				for(int j=0; j<numPositions; j++) {
+					characterOptions.add(getCharacterSet(readVarint(buffer), table, characterSets));
+					characterChecks.add(getCharacterSet(readVarint(buffer), table, characterSets));
+				}
+				nodeSerializations.add(new MultiConstantNodeSerialization(data, characterOptions, characterChecks));
+				break;
+			case CompactGrammar.ALTERNATION:
+				int first = readVarint(buffer);
+				int second = readVarint(buffer);
+				nodeSerializations.add(new AlternationNodeSerialization(data, first, second));
+				break;
+			case CompactGrammar.MULTI_ALTERNATION:
+				int numChildren = readVarint(buffer);
+				List<Integer> children = new ArrayList<Integer>(numChildren);
+				for(int j=0; j<numChildren; j++) {
+					children.add(readVarint(buffer));
+				}
+				nodeSerializations.add(new MultiAlternationNodeSerialization(data, children));
+				break;
+			case CompactGrammar.REPETITION:
+				int start = readVarint(buffer);
+				int rep = readVarint(buffer);
+				int end = readVarint(buffer);
+				nodeSerializations.add(new RepetitionNodeSerialization(data, start, rep, end));
+				break;
+			default:
+				throw new RuntimeException("Invalid node kind: " + kind);
+			}
+		}
+		List<Node> nodes = new NodeDeserializer(nodeSerializations).deserialize();
+		NodeMerges merges = new NodeMerges();
+		int numMerged = readVarint(buffer);
+		for(int i=0; i<numMerged; i++) {
+			Node node = nodes.get(readVarint(buffer));
+			int numCurMerges = readVarint(buffer);
+			for(int j=0; j<numCurMerges; j++) {
+				merges.add(node, nodes.get(readVarint(buffer)));
+			}
+		}
+		return new Grammar(nodes.get(0), merges);
+	}
 }
@@ -14,14 +14,20 @@
 
 package glade.grammar;
 
+import glade.util.CharacterSet;
 import glade.util.CharacterUtils;
-import glade.util.Utils.MultivalueMap;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 public class GrammarUtils {
 	public static class Grammar {
@@ -33,38 +39,161 @@ public class GrammarUtils {
 		}
 	}
 
+	// A context is a chain of overlays. The root holds explicit strings, every other context adds a
+	// prefix and a suffix of its source (the example it was split from) to those of its parent, so
+	// contexts share the seed instead of copying it. Query strings are only built when needed.
 	public static final class Context {
-		public final String pre;
-		public final String post;
-		public final String extraPre;
-		public final String extraPost;
+		final Context parent;
+		final String source;
+		final int preEnd;
+		final int postBegin;
+		final int extraPreEnd;
+		final int extraPostBegin;
+		final String pre;
+		final String post;
+		final String extraPre;
+		final String extraPost;
+		private final int preLength;
+		private final int postLength;
+		private final int extraPreLength;
+		private final int extraPostLength;
+		private final boolean isExtraSame;
+		private volatile Boolean useExtra = null;
 		public Context() {
-			this.pre = "";
-			this.post = "";
-			this.extraPre = "";
-			this.extraPost = "";
+			this("", "", "", "");
+		}
+		public Context(String pre, String post, String extraPre, String extraPost) {
+			this.parent = null;
+			this.source = null;
+			this.preEnd = this.postBegin = this.extraPreEnd = this.extraPostBegin = 0;
+			this.pre = pre;
+			this.post = post;
+			this.extraPre = extraPre;
+			this.extraPost = extraPost;
+			this.preLength = pre.length();
+			this.postLength = post.length();
+			this.extraPreLength = extraPre.length();
+			this.extraPostLength = extraPost.length();
+			this.isExtraSame = pre.equals(extraPre) && post.equals(extraPost);
+		}
+		// adds source[0, preEnd) to the parent's prefix and source[postBegin, end) to its suffix
+		public Context(Context parent, String source, int preEnd, int postBegin, int extraPreEnd, int extraPostBegin) {
+			this.parent = parent;
+			this.source = source;
+			this.preEnd = preEnd;
+			this.postBegin = postBegin;
+			this.extraPreEnd = extraPreEnd;
+			this.extraPostBegin = extraPostBegin;
+			this.pre = this.post = this.extraPre = this.extraPost = null;
+			this.preLength = parent.preLength + preEnd;
+			this.postLength = source.length() - postBegin + parent.postLength;
+			this.extraPreLength = parent.extraPreLength + extraPreEnd;
+			this.extraPostLength = source.length() - extraPostBegin + parent.extraPostLength;
+			this.isExtraSame = parent.isExtraSame && preEnd == extraPreEnd && postBegin == extraPostBegin;
+		}
+		public Context(NodeData parent, int preEnd, int postBegin, int extraPreEnd, int extraPostBegin) {
+			this(parent.getContext(), parent.getExample(), preEnd, postBegin, extraPreEnd, extraPostBegin);
+		}
+		private void appendPre(StringBuilder sb) {
+			if(this.parent == null) {
+				sb.append(this.pre);
+			} else {
+				this.parent.appendPre(sb);
+				sb.append(this.source, 0, this.preEnd);
+			}
+		}
+		private void appendPost(StringBuilder sb) {
+			if(this.parent == null) {
+				sb.append(this.post);
+			} else {
+				sb.append(this.source, this.postBegin, this.source.length());
+				this.parent.appendPost(sb);
+			}
+		}
+		private void appendExtraPre(StringBuilder sb) {
+			if(this.parent == null) {
+				sb.append(this.extraPre);
+			} else {
+				this.parent.appendExtraPre(sb);
+				sb.append(this.source, 0, this.extraPreEnd);
+			}
+		}
+		private void appendExtraPost(StringBuilder sb) {
+			if(this.parent == null) {
+				sb.append(this.extraPost);
+			} else {
+				sb.append(this.source, this.extraPostBegin, this.source.length());
+				this.parent.appendExtraPost(sb);
+			}
+		}
+		public String getPre() {
+			StringBuilder sb = new StringBuilder(this.preLength);
+			this.appendPre(sb);
+			return sb.toString();
+		}
+		public String getPost() {
+			StringBuilder sb = new StringBuilder(this.postLength);
+			this.appendPost(sb);
+			return sb.toString();
+		}
+		public String getExtraPre() {
+			StringBuilder sb = new StringBuilder(this.extraPreLength);
+			this.appendExtraPre(sb);
+			return sb.toString();
+		}
+		public String getExtraPost() {
+			StringBuilder sb = new StringBuilder(this.extraPostLength);
+			this.appendExtraPost(sb);
+			return sb.toString();
 		}
-		public Context(Context parent, String pre, String post, String extraPre, String extraPost) {
-			this.pre = parent.pre + pre;
-			this.post = post + parent.post;
-			this.extraPre = parent.extraPre + extraPre;
-			this.extraPost = extraPost + parent.extraPost;
+		// pre + example + post
+		public String getQuery(String example) {
+			StringBuilder sb = new StringBuilder(this.preLength + example.length() + this.postLength);
+			this.appendPre(sb);
+			sb.append(example);
+			this.appendPost(sb);
+			return sb.toString();
+		}
+		// extraPre + example + extraPost
+		public String getExtraQuery(String example) {
+			StringBuilder sb = new StringBuilder(this.extraPreLength + example.length() + this.extraPostLength);
+			this.appendExtraPre(sb);
+			sb.append(example);
+			this.appendExtraPost(sb);
+			return sb.toString();
 		}
 		public boolean useExtra() {
-			return !this.pre.equals(this.extraPre) || !this.post.equals(this.extraPost);
+			if(this.useExtra == null) {
+				if(this.isExtraSame) {
+					this.useExtra = false;
+				} else if(this.preLength != this.extraPreLength || this.postLength != this.extraPostLength) {
+					this.useExtra = true;
+				} else {
+					this.useExtra = !this.getPre().equals(this.getExtraPre()) || !this.getPost().equals(this.getExtraPost());
+				}
+			}
+			return this.useExtra;
 		}
 	}
 
+	// Subclasses may compute the example and the context when they are first accessed.
 	public static class NodeData {
-		public final String example;
-		public final Context context;
+		private final String example;
+		private final Context context;
 		public NodeData(String example, Context context) {
 			this.example = example;
 			this.context = context;
 		}
+		public String getExample() {
+			return this.example;
+		}
+		public Context getContext() {
+			return this.context;
+		}
 	}
 
 	public static interface Node {
+		// unmodifiable, the same list on every call
 		public abstract List<Node> getChildren();
 		public abstract NodeData getData();
 		public abstract String toAnsiString();
@@ -76,13 +205,13 @@ public class GrammarUtils {
 			this.data = data;
 		}
 		public List<Node> getChildren() {
-			return new ArrayList<Node>();
+			return Collections.emptyList();
 		}
 		public NodeData getData() {
 			return this.data;
 		}
         public String toString() {
-			return this.data.example;
+			return this.data.getExample();
 		}
         public String toAnsiString() {
             throw new UnsupportedOperationException();
@@ -91,29 +220,29 @@ public class GrammarUtils {
 
 	public static class MultiConstantNode implements Node {
 		private final NodeData data;
-		public final List<Set<Character>> characterOptions = new ArrayList<Set<Character>>();
-		public final List<Set<Character>> characterChecks = new ArrayList<Set<Character>>();
-		public MultiConstantNode(NodeData data, List<List<Character>> characterOptions, List<List<Character>> characterChecks) {
+		public final List<CharacterSet> characterOptions = new ArrayList<CharacterSet>();
+		public final List<CharacterSet> characterChecks = new ArrayList<CharacterSet>();
+		public MultiConstantNode(NodeData data, List<? extends Collection<Character>> characterOptions, List<? extends Collection<Character>> characterChecks) {
 			this.data = data;
 			if(characterOptions.size() != characterChecks.size()) {
 				throw new RuntimeException("Invalid characters!");
 			}
-			for(List<Character> characters : characterOptions) {
-				this.characterOptions.add(new LinkedHashSet<Character>(characters));
+			for(Collection<Character> characters : characterOptions) {
+				this.characterOptions.add(characters instanceof CharacterSet ? (CharacterSet)characters : new CharacterSet(characters));
 			}
-			for(List<Character>characters : characterChecks) {
-				this.characterChecks.add(new LinkedHashSet<Character>(characters));
+			for(Collection<Character> characters : characterChecks) {
+				this.characterChecks.add(characters instanceof CharacterSet ? (CharacterSet)characters : new CharacterSet(characters));
 			}
 		}
 		public List<Node> getChildren() {
-			return new ArrayList<Node>();
+			return Collections.emptyList();
 		}
 		public NodeData getData() {
 			return this.data;
 		}
         public String toString() {
 			StringBuilder sb = new StringBuilder();
-			for(Set<Character> characterOption : this.characterOptions) {
+			for(CharacterSet characterOption : this.characterOptions) {
 				sb.append("(");
 				for(char character : characterOption) {
 					sb.append(character).append("+");
@@ -127,9 +256,9 @@ public class GrammarUtils {
                 return "";
             }
             StringBuilder sb = new StringBuilder();
-            Set<Character> prevCharOption = this.characterOptions.get(0);
+            CharacterSet prevCharOption = this.characterOptions.get(0);
             int count = 0;
-            for(Set<Character> charOption : this.characterOptions) {
+            for(CharacterSet charOption : this.characterOptions) {
                 if (charOption.equals(prevCharOption)) {
                     count++;
                 } else {
@@ -141,25 +270,24 @@ public class GrammarUtils {
             addCharOptionToBuilder(prevCharOption, count, sb);
             return sb.toString();
         }
-        private void addCharOptionToBuilder(Set<Character> charOption, int count, StringBuilder sb) {
+        private void addCharOptionToBuilder(CharacterSet charOption, int count, StringBuilder sb) {
             if (count < 1) {
                 return;
             }
             if (charOption.size() == CharacterUtils.getNumberOfCharacters()) {
                 sb.append(".");
             } else if (charOption.size() == 1) {
-                 sb.append(CharacterUtils.queryCharToAnsiString(charOption.iterator().next()));
+                 sb.append(CharacterUtils.queryCharToAnsiString(charOption.get(0)));
             } else {
                 sb.append("[");
-                List<Character> characterClass = charOption.stream().sorted().collect(Collectors.toList());
-                char first = characterClass.get(0);
-                char last = characterClass.get(characterClass.size() - 1);
-                if (characterClass.size() > 2 && first + characterClass.size() - 1 == last) {
-                    sb.append(CharacterUtils.queryCharToAnsiString(first)).append("-")
-                        .append(CharacterUtils.queryCharToAnsiString(last));
+                int first = charOption.nextCharacter(0);
+                int last = charOption.lastCharacter();
+                if (charOption.size() > 2 && first + charOption.size() - 1 == last) {
+                    sb.append(CharacterUtils.queryCharToAnsiString((char) first)).append("-")
+                        .append(CharacterUtils.queryCharToAnsiString((char) last));
                 } else {
-                    for(char character : characterClass) {
-                        sb.append(CharacterUtils.queryCharToAnsiString(character));
+                    for(int c = first; c != -1; c = charOption.nextCharacter(c + 1)) {
+                        sb.append(CharacterUtils.queryCharToAnsiString((char) c));
                     }
                 }
                 sb.append("]");
@@ -174,16 +302,15 @@ public class GrammarUtils {
 		private final NodeData data;
 		public final Node first;
 		public final Node second;
+		private final List<Node> children;
 		public AlternationNode(NodeData data, Node first, Node second) {
 			this.data = data;
 			this.first = first;
 			this.second = second;
+			this.children = Collections.unmodifiableList(Arrays.asList(first, second));
 		}
 		public List<Node> getChildren() {
-			List<Node> children = new ArrayList<Node>();
-			children.add(this.first);
-			children.add(this.second);
-			return children;
+			return this.children;
 		}
 		public NodeData getData() {
 			return this.data;
@@ -198,15 +325,13 @@ public class GrammarUtils {
 
 	public static class MultiAlternationNode implements Node {
 		private final NodeData data;
-		private final List<Node> children = new ArrayList<Node>();
+		private final List<Node> children;
 		public MultiAlternationNode(NodeData data, List<Node> children) {
 			this.data = data;
-			this.children.addAll(children);
+			this.children = Collections.unmodifiableList(new ArrayList<Node>(children));
 		}
 		public List<Node> getChildren() {
-			List<Node> newChildren = new ArrayList<Node>();
-			newChildren.addAll(this.children);
-			return newChildren;
+			return this.children;
 		}
 		public NodeData getData() {
 			return this.data;
@@ -233,18 +358,16 @@ public class GrammarUtils {
 		public final Node start;
 		public final Node rep;
 		public final Node end;
+		private final List<Node> children;
 		public RepetitionNode(NodeData data, Node start, Node rep, Node end) {
 			this.data = data;
 			this.start = start;
 			this.rep = rep;
 			this.end = end;
+			this.children = Collections.unmodifiableList(Arrays.asList(start, rep, end));
 		}
 		public List<Node> getChildren() {
-			List<Node> children = new ArrayList<Node>();
-			children.add(this.start);
-			children.add(this.rep);
-			children.add(this.end);
-			return children;
+			return this.children;
 		}
 		public NodeData getData() {
 			return this.data;
@@ -258,40 +381,179 @@ public class GrammarUtils {
         }
 	}
 
+	// Merged nodes are numbered in the order they are first merged. The merges of each node are an array of
+	// ids in the order they were added, and a hash table of id pairs answers contains, so neither lookups nor
+	// iteration allocate.
 	public static class NodeMerges {
-		private final MultivalueMap<Node,Node> merges = new MultivalueMap<Node,Node>();
+		private final Map<Node,Integer> ids = new IdentityHashMap<Node,Integer>();
+		private final List<Node> nodes = new ArrayList<Node>();
+		private int[][] merges = new int[16][];
+		private int[] numMerges = new int[16];
+		private long[] pairs = newPairs(64);
+		private int numPairs = 0;
 		public void add(Node first, Node second) {
-			this.merges.add(first, second);
-			this.merges.add(second, first);
+			int firstId = this.ensure(first);
+			int secondId = this.ensure(second);
+			this.add(firstId, secondId);
+			this.add(secondId, firstId);
 		}
 		public void addAll(NodeMerges other) {
-			for(Node first : other.keySet()) {
-				for(Node second : other.get(first)) {
-					this.add(first, second);
+			for(int i=0; i<other.size(); i++) {
+				for(int j=0; j<other.numMerges[i]; j++) {
+					this.add(other.nodes.get(i), other.nodes.get(other.merges[i][j]));
 				}
 			}
 		}
+		// a view, empty if the node is not merged
 		public Set<Node> get(Node node) {
-			return this.merges.get(node);
+			final Integer id = this.ids.get(node);
+			if(id == null) {
+				return Collections.emptySet();
+			}
+			return new AbstractSet<Node>() {
+				@Override
+				public int size() {
+					return NodeMerges.this.numMerges[id];
+				}
+				@Override
+				public boolean contains(Object o) {
+					Integer other = NodeMerges.this.ids.get(o);
+					return other != null && NodeMerges.this.containsPair(id, other);
+				}
+				@Override
+				public Iterator<Node> iterator() {
+					return new Iterator<Node>() {
+						private int index = 0;
+						@Override
+						public boolean hasNext() {
+							return this.index < NodeMerges.this.numMerges[id];
+						}
+						@Override
+						public Node next() {
+							if(!this.hasNext()) {
+								throw new NoSuchElementException();
+							}
+							return NodeMerges.this.nodes.get(NodeMerges.this.merges[id][this.index++]);
+						}
+					};
+				}
+			};
 		}
+		// the merged nodes, in the order of their ids
 		public Set<Node> keySet() {
-			return this.merges.keySet();
+			return new AbstractSet<Node>() {
+				@Override
+				public int size() {
+					return NodeMerges.this.nodes.size();
+				}
+				@Override
+				public boolean contains(Object o) {
+					return NodeMerges.this.ids.containsKey(o);
+				}
+				@Override
+				public Iterator<Node> iterator() {
+					return Collections.unmodifiableList(NodeMerges.this.nodes).iterator();
+				}
+			};
 		}
 		public boolean contains(Node first, Node second) {
-			return this.merges.get(first).contains(second);
+			Integer firstId = this.ids.get(first);
+			Integer secondId = this.ids.get(second);
+			return firstId != null && secondId != null && this.containsPair(firstId, secondId);
+		}
+		// number of merged nodes
+		public int size() {
+			return this.nodes.size();
+		}
+		// -1 if the node is not merged
+		public int getId(Node node) {
+			Integer id = this.ids.get(node);
+			return id == null ? -1 : id;
+		}
+		public Node getNode(int id) {
+			return this.nodes.get(id);
+		}
+		public int getNumMerges(int id) {
+			return this.numMerges[id];
+		}
+		public int getMerge(int id, int index) {
+			return this.merges[id][index];
+		}
+		private int ensure(Node node) {
+			Integer id = this.ids.get(node);
+			if(id == null) {
+				id = this.nodes.size();
+				this.ids.put(node, id);
+				this.nodes.add(node);
+				if(id == this.merges.length) {
+					this.merges = Arrays.copyOf(this.merges, 2*id);
+					this.numMerges = Arrays.copyOf(this.numMerges, 2*id);
+				}
+				this.merges[id] = new int[2];
+			}
+			return id;
+		}
+		private void add(int first, int second) {
+			if(!this.addPair(first, second)) {
+				return;
+			}
+			if(this.numMerges[first] == this.merges[first].length) {
+				this.merges[first] = Arrays.copyOf(this.merges[first], 2*this.numMerges[first]);
+			}
+			this.merges[first][this.numMerges[first]++] = second;
+		}
+		private static long[] newPairs(int capacity) {
+			long[] pairs = new long[capacity];
+			Arrays.fill(pairs, -1L);
+			return pairs;
+		}
+		private int getSlot(long pair) {
+			int mask = this.pairs.length - 1;
+			int slot = (int)((pair * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+			while(this.pairs[slot] != -1L && this.pairs[slot] != pair) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		private boolean containsPair(int first, int second) {
+			long pair = ((long)first << 32) | second;
+			return this.pairs[this.getSlot(pair)] == pair;
+		}
+		// false if the pair is already present
+		private boolean addPair(int first, int second) {
+			long pair = ((long)first << 32) | second;
+			int slot = this.getSlot(pair);
+			if(this.pairs[slot] == pair) {
+				return false;
+			}
+			this.pairs[slot] = pair;
+			if(2*(++this.numPairs) > this.pairs.length) {
+				long[] oldPairs = this.pairs;
+				this.pairs = newPairs(2*oldPairs.length);
+				for(long oldPair : oldPairs) {
+					if(oldPair != -1L) {
+						this.pairs[this.getSlot(oldPair)] = oldPair;
+					}
+				}
+			}
+			return true;
 		}
 	}
 
-	private static void getAllNodesHelper(Node root, List<Node> nodes) {
+	private static void getAllNodesHelper(Node root, List<Node> nodes, Set<Node> visited) {
+		if(!visited.add(root)) {
+			return;
+		}
 		nodes.add(root);
 		for(Node child : root.getChildren()) {
-			getAllNodesHelper(child, nodes);
+			getAllNodesHelper(child, nodes, visited);
 		}
 	}
 
+	// in preorder, nodes shared by several parents only once
 	public static List<Node> getAllNodes(Node root) {
 		List<Node> nodes = new ArrayList<Node>();
-		getAllNodesHelper(root, nodes);
+		getAllNodesHelper(root, nodes, Collections.newSetFromMap(new IdentityHashMap<Node,Boolean>()));
 		return nodes;
 	}
 
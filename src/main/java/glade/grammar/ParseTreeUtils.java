@@ -14,6 +14,8 @@
 
 package glade.grammar;
 
+import glade.grammar.GrammarUtils.AlternationNode;
+import glade.grammar.GrammarUtils.ConstantNode;
 import glade.grammar.GrammarUtils.MultiAlternationNode;
 import glade.grammar.GrammarUtils.MultiConstantNode;
 import glade.grammar.GrammarUtils.Node;
@@ -140,6 +142,69 @@ public class ParseTreeUtils {
 		}
 	}
 	
+	public static class ParseTreeConstantNode implements ParseTreeNode {
+		private final ConstantNode node;
+		private final String example;
+		
+		public ParseTreeConstantNode(ConstantNode node, String example) {
+			this.node = node;
+			this.example = example;
+		}
+
+		@Override
+		public Node getNode() {
+			return this.node;
+		}
+
+		@Override
+		public String getExample() {
+			return this.example;
+		}
+
+		@Override
+		public List<ParseTreeNode> getChildren() {
+			return new ArrayList<ParseTreeNode>();
+		}
+		
+		@Override
+		public String toString() {
+			return this.example;
+		}
+	}
+	
+	public static class ParseTreeAlternationNode implements ParseTreeNode {
+		private final AlternationNode node;
+		private final String example;
+		
+		public final ParseTreeNode choice;
+		
+		public ParseTreeAlternationNode(AlternationNode node, ParseTreeNode choice) {
+			this.node = node;
+			this.example = choice.getExample();
+			this.choice = choice;
+		}
+		
+		@Override
+		public Node getNode() {
+			return this.node;
+		}
+
+		@Override
+		public String getExample() {
+			return this.example;
+		}
+
+		@Override
+		public List<ParseTreeNode> getChildren() {
+			return Utils.getList(this.choice);
+		}
+		
+		@Override
+		public String toString() {
+			return this.example;
+		}
+	}
+	
 	public static class ParseTreeMergeNode implements ParseTreeNode {
 		private final Node node;
 		private final String example;
@@ -192,7 +257,7 @@ public class ParseTreeUtils {
 				return new ParseTreeRepetitionNode(repNode, start, Utils.getList(getParseTreeRepConst(repNode.rep)), end);
 			}
 		} else if(node instanceof MultiConstantNode) {
-			return new ParseTreeMultiConstantNode((MultiConstantNode)node, node.getData().example);
+			return new ParseTreeMultiConstantNode((MultiConstantNode)node, node.getData().getExample());
 		} else {
 			throw new RuntimeException("Invalid node type: " + node.getClass().getName());
 		}
@@ -216,7 +281,7 @@ public class ParseTreeUtils {
 	}
 	
 	private static void getDescendantsByTypeHelper(ParseTreeNode node, List<ParseTreeNode>[] descendants) {
-		if(node instanceof ParseTreeMultiConstantNode) {
+		if(node instanceof ParseTreeMultiConstantNode || node instanceof ParseTreeConstantNode) {
 			descendants[0].add(node);
 		} else {
 			descendants[1].add(node);
@@ -251,7 +316,13 @@ public class ParseTreeUtils {
 		} else if(node instanceof ParseTreeMultiAlternationNode) {
 			ParseTreeNode newChoice = getSubstitute(((ParseTreeMultiAlternationNode)node).choice, cur, sub);
 			return new ParseTreeMultiAlternationNode(((ParseTreeMultiAlternationNode)node).node, newChoice);
-		} else if(node instanceof ParseTreeMultiConstantNode) {
+		} else if(node instanceof ParseTreeAlternationNode) {
+			ParseTreeNode newChoice = getSubstitute(((ParseTreeAlternationNode)node).choice, cur, sub);
+			return new ParseTreeAlternationNode(((ParseTreeAlternationNode)node).node, newChoice);
+		} else if(node instanceof ParseTreeMergeNode) {
+			ParseTreeNode newMerge = getSubstitute(((ParseTreeMergeNode)node).merge, cur, sub);
+			return new ParseTreeMergeNode(((ParseTreeMergeNode)node).node, newMerge);
+		} else if(node instanceof ParseTreeMultiConstantNode || node instanceof ParseTreeConstantNode) {
 			return node;
 		} else {
 			throw new RuntimeException("Unrecognized node type: " + node.getClass().getName());
@@ -14,12 +14,11 @@
 
 package glade.grammar.fuzz;
 
-import glade.grammar.GrammarUtils;
+import glade.grammar.CompactGrammar;
 import glade.grammar.GrammarUtils.Grammar;
 import glade.grammar.GrammarUtils.MultiAlternationNode;
 import glade.grammar.GrammarUtils.MultiConstantNode;
 import glade.grammar.GrammarUtils.Node;
-import glade.grammar.GrammarUtils.NodeMerges;
 import glade.grammar.GrammarUtils.RepetitionNode;
 import glade.grammar.ParseTreeUtils;
 import glade.grammar.ParseTreeUtils.ParseTreeMultiConstantNode;
@@ -28,12 +27,9 @@ import glade.grammar.ParseTreeUtils.ParseTreeRepetitionNode;
 import glade.util.CharacterUtils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 
 public class GrammarFuzzer {
 	public static class SampleParameters {
@@ -88,83 +84,98 @@ public class GrammarFuzzer {
 		}
 	}
 
-	private static ParseTreeNode sampleHelper(Node grammar, NodeMerges recursiveNodes, SampleParameters parameters, Random random, Map<Node,ParseTreeNode> backup, IntBox length) {
+	private static ParseTreeNode sampleHelper(CompactGrammar grammar, int node, SampleParameters parameters, Random random, ParseTreeNode[] backup, IntBox length) {
 		if(length.value() == 0) {
-			return backup.get(grammar);
+			return backup[node];
 		}
 		length.decrement();
-		if(!recursiveNodes.get(grammar).isEmpty() && parameters.randRecursion(random)) {
-			int choice = parameters.randMultiAlternation(random, recursiveNodes.get(grammar).size());
-			return sampleHelper(new ArrayList<Node>(recursiveNodes.get(grammar)).get(choice), recursiveNodes, parameters, random, backup, length);
-		} else if(grammar instanceof MultiAlternationNode) {
-			MultiAlternationNode node = (MultiAlternationNode)grammar;
-			int choice = parameters.randMultiAlternation(random, node.getChildren().size());
-			return sampleHelper(node.getChildren().get(choice), recursiveNodes, parameters, random, backup, length);
-		} else if(grammar instanceof RepetitionNode) {
-			ParseTreeNode start = sampleHelper(((RepetitionNode)grammar).start, recursiveNodes, parameters, random, backup, length);
+		int numMerges = grammar.getNumMerges(node);
+		if(numMerges != 0 && parameters.randRecursion(random)) {
+			int choice = parameters.randMultiAlternation(random, numMerges);
+			return sampleHelper(grammar, grammar.getMerge(node, choice), parameters, random, backup, length);
+		}
+		switch(grammar.getKind(node)) {
+		case CompactGrammar.MULTI_ALTERNATION:
+			int choice = parameters.randMultiAlternation(random, grammar.getNumChildren(node));
+			return sampleHelper(grammar, grammar.getChild(node, choice), parameters, random, backup, length);
+		case CompactGrammar.REPETITION:
+			ParseTreeNode start = sampleHelper(grammar, grammar.getChild(node, 0), parameters, random, backup, length);
 			List<ParseTreeNode> rep = new ArrayList<ParseTreeNode>();
 			int reps = parameters.randRepetition(random);
 			for(int i=0; i<reps; i++) {
-				rep.add(sampleHelper(((RepetitionNode)grammar).rep, recursiveNodes, parameters, random, backup, length));
+				rep.add(sampleHelper(grammar, grammar.getChild(node, 1), parameters, random, backup, length));
 			}
-			ParseTreeNode end = sampleHelper(((RepetitionNode)grammar).end, recursiveNodes, parameters, random, backup, length);
-			return new ParseTreeRepetitionNode((RepetitionNode)grammar, start, rep, end);
-		} else if(grammar instanceof MultiConstantNode) {
-			MultiConstantNode mconstNode = (MultiConstantNode)grammar;
-			StringBuilder sb = new StringBuilder();
+			ParseTreeNode end = sampleHelper(grammar, grammar.getChild(node, 2), parameters, random, backup, length);
+			return new ParseTreeRepetitionNode((RepetitionNode)grammar.getNode(node), start, rep, end);
+		case CompactGrammar.MULTI_CONSTANT:
+			int numPositions = grammar.getNumPositions(node);
+			StringBuilder sb = new StringBuilder(numPositions);
 			boolean useAllCharacters = parameters.randAllCharacters(random);
-			for(Set<Character> characterOption : useAllCharacters ? mconstNode.characterOptions : mconstNode.characterChecks) {
-				List<Character> characterOptionList = new ArrayList<Character>(characterOption);
-				int choice = parameters.randMultiAlternation(random, characterOptionList.size());
-				sb.append(characterOptionList.get(choice));
+			for(int i=0; i<numPositions; i++) {
+				if(useAllCharacters) {
+					sb.append(grammar.getOption(node, i, parameters.randMultiAlternation(random, grammar.getNumOptions(node, i))));
+				} else {
+					sb.append(grammar.getCheck(node, i, parameters.randMultiAlternation(random, grammar.getNumChecks(node, i))));
+				}
 			}
-			return new ParseTreeMultiConstantNode(mconstNode, sb.toString());
-		} else {
-			throw new RuntimeException("Invalid node type: " + grammar.getClass().getName());
+			return new ParseTreeMultiConstantNode((MultiConstantNode)grammar.getNode(node), sb.toString());
+		default:
+			throw new RuntimeException("Invalid node type: " + grammar.getNode(node).getClass().getName());
 		}
 	}
 
-	private static void getBackup(ParseTreeNode node, Map<Node,ParseTreeNode> backup) {
-		backup.put(node.getNode(), node);
+	private static void getBackup(CompactGrammar grammar, ParseTreeNode node, ParseTreeNode[] backup) {
+		backup[grammar.getId(node.getNode())] = node;
 		for(ParseTreeNode child : node.getChildren()) {
-			getBackup(child, backup);
+			getBackup(grammar, child, backup);
 		}
 	}
 
-	public static ParseTreeNode sample(Node program, Grammar grammar, SampleParameters parameters, Random random) {
-		Map<Node,ParseTreeNode> backup = new HashMap<Node,ParseTreeNode>();
-		if(grammar.node instanceof MultiAlternationNode) {
-			for(ParseTreeNode parseTree : ParseTreeUtils.getParseTreeAlt((MultiAlternationNode)grammar.node)) {
-				getBackup(parseTree, backup);
+	// the parse tree of the examples of each node, used once the length budget of a sample is spent
+	private static ParseTreeNode[] getBackup(CompactGrammar grammar) {
+		ParseTreeNode[] backup = new ParseTreeNode[grammar.size()];
+		Node root = grammar.getNode(grammar.getRoot());
+		if(root instanceof MultiAlternationNode) {
+			for(ParseTreeNode parseTree : ParseTreeUtils.getParseTreeAlt((MultiAlternationNode)root)) {
+				getBackup(grammar, parseTree, backup);
 			}
 		} else {
-			getBackup(ParseTreeUtils.getParseTree(grammar.node), backup);
+			getBackup(grammar, ParseTreeUtils.getParseTree(root), backup);
 		}
-		for(Node node : grammar.merges.keySet()) {
-			if(!backup.containsKey(node)) {
-				throw new RuntimeException("Invalid node: " + node);
-			}
-			for(Node merge : grammar.merges.get(node)) {
-				if(!backup.containsKey(merge)) {
-					throw new RuntimeException("Invalid node: " + node);
-				}
+		for(int i=0; i<grammar.size(); i++) {
+			if(backup[i] == null) {
+				throw new RuntimeException("Invalid node: " + grammar.getNode(i));
 			}
 		}
-		for(Node descendant : GrammarUtils.getDescendants(program)) {
-			if(!backup.containsKey(descendant)) {
-				throw new RuntimeException("Invalid node: " + descendant);
-			}
+		return backup;
+	}
+
+	private static ParseTreeNode sample(int program, CompactGrammar grammar, ParseTreeNode[] backup, SampleParameters parameters, Random random) {
+		if(program == -1) {
+			throw new RuntimeException("Invalid node: not part of the grammar");
 		}
-		return sampleHelper(program, grammar.merges, parameters, random, backup, new IntBox(parameters.getBoxSize()));
+		return sampleHelper(grammar, program, parameters, random, backup, new IntBox(parameters.getBoxSize()));
+	}
+
+	// compiles the grammar on every call, the samplers below compile it once
+	public static ParseTreeNode sample(Node program, Grammar grammar, SampleParameters parameters, Random random) {
+		CompactGrammar compactGrammar = new CompactGrammar(grammar);
+		return sample(compactGrammar.getId(program), compactGrammar, getBackup(compactGrammar), parameters, random);
 	}
 
 	public static class GrammarSampler implements Iterator<String>, Iterable<String> {
-		private final Grammar grammar;
+		private final CompactGrammar grammar;
+		private final ParseTreeNode[] backup;
 		private final SampleParameters parameters;
 		private final Random random;
 
 		public GrammarSampler(Grammar grammar, SampleParameters parameters, Random random) {
+			this(new CompactGrammar(grammar), parameters, random);
+		}
+
+		public GrammarSampler(CompactGrammar grammar, SampleParameters parameters, Random random) {
 			this.grammar = grammar;
+			this.backup = getBackup(this.grammar);
 			this.parameters = parameters;
 			this.random = random;
 		}
@@ -176,7 +187,7 @@ public class GrammarFuzzer {
 
 		@Override
 		public String next() {
-			return GrammarFuzzer.sample(this.grammar.node, this.grammar, this.parameters, this.random).getExample();
+			return GrammarFuzzer.sample(this.grammar.getRoot(), this.grammar, this.backup, this.parameters, this.random).getExample();
 		}
 
 		@Override
@@ -191,14 +202,20 @@ public class GrammarFuzzer {
 	}
 
 	public static class GrammarMutationSampler implements Iterator<String>, Iterable<String> {
-		private final Grammar grammar;
+		private final CompactGrammar compactGrammar;
+		private final ParseTreeNode[] backup;
 		private final SampleParameters parameters;
 		private final int maxLength;
 		private final int numMutations;
 		private final Random random;
 
 		public GrammarMutationSampler(Grammar grammar, SampleParameters parameters, int maxLength, int numMutations, Random random) {
-			this.grammar = grammar;
+			this(new CompactGrammar(grammar), parameters, maxLength, numMutations, random);
+		}
+
+		public GrammarMutationSampler(CompactGrammar grammar, SampleParameters parameters, int maxLength, int numMutations, Random random) {
+			this.compactGrammar = grammar;
+			this.backup = getBackup(this.compactGrammar);
 			this.parameters = parameters;
 			this.maxLength = maxLength;
 			this.numMutations = numMutations;
@@ -210,7 +227,7 @@ public class GrammarFuzzer {
 			int isMultiConstant = descendants[1].isEmpty() || (!descendants[0].isEmpty() && this.random.nextBoolean()) ? 0 : 1;
 			int choice = this.random.nextInt(descendants[isMultiConstant].size());
 			ParseTreeNode cur = descendants[isMultiConstant].get(choice);
-			ParseTreeNode sub = GrammarFuzzer.sample(cur.getNode(), this.grammar, this.parameters, this.random);
+			ParseTreeNode sub = GrammarFuzzer.sample(this.compactGrammar.getId(cur.getNode()), this.compactGrammar, this.backup, this.parameters, this.random);
 			ParseTreeNode result = ParseTreeUtils.getSubstitute(seed, cur, sub);
 			return result;
 		}
@@ -225,7 +242,11 @@ public class GrammarFuzzer {
 		}
 
 		public String sampleOne(Node node) {
-			ParseTreeNode cur = ParseTreeUtils.getParseTree(node);
+			return this.sampleOne(ParseTreeUtils.getParseTree(node));
+		}
+
+		// mutates an existing parse tree, e.g., one obtained by parsing an input with GrammarParser
+		public String sampleOne(ParseTreeNode cur) {
 			int choice = this.random.nextInt(this.numMutations);
 			for(int i=0; i<choice; i++) {
 				cur = this.sample(cur);
@@ -240,15 +261,13 @@ public class GrammarFuzzer {
 
 		@Override
 		public String next() {
-			Node node = this.grammar.node;
-			if(node instanceof MultiAlternationNode) {
-				MultiAlternationNode maltNode = (MultiAlternationNode)node;
-				List<Node> children = maltNode.getChildren();
-				int choice = this.random.nextInt(children.size());
-				return this.sampleOne(children.get(choice));
-			} else {
-				return this.sampleOne(node);
+			int node = this.compactGrammar.getRoot();
+			if(this.compactGrammar.getKind(node) == CompactGrammar.MULTI_ALTERNATION) {
+				int choice = this.random.nextInt(this.compactGrammar.getNumChildren(node));
+				node = this.compactGrammar.getChild(node, choice);
 			}
+			// a fresh parse tree, substitutions replace subtrees by identity and the backups are shared
+			return this.sampleOne(this.compactGrammar.getNode(node));
 		}
 
 		@Override
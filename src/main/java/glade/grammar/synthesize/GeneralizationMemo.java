@@ -0,0 +1,104 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar.synthesize;
+
+import glade.grammar.GrammarUtils.ConstantNode;
+import glade.grammar.GrammarUtils.Context;
+import glade.grammar.GrammarUtils.MultiConstantNode;
+import glade.util.CharacterSet;
+import glade.util.CharacterUtils;
+import glade.util.Log;
+import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.Utils;
+import glade.util.Utils.Maybe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Generalized constants, keyed on the constant and a fingerprint of where it occurs. A constant that was
+// generalized before in an equivalent place is not probed again: a few of the characters accepted before
+// are spot checked in the new context, and the earlier generalization is reused if they are accepted.
+public class GeneralizationMemo {
+	private static class Generalization {
+		// character sets are immutable and shared with the generalized nodes
+		private final List<CharacterSet> characterOptions;
+		private final List<CharacterSet> characterChecks;
+		private Generalization(MultiConstantNode node) {
+			this.characterOptions = new ArrayList<CharacterSet>(node.characterOptions);
+			this.characterChecks = new ArrayList<CharacterSet>(node.characterChecks);
+		}
+	}
+
+	private final int numSpotChecks;
+	private final ConcurrentMap<String,Generalization> generalizations = new ConcurrentHashMap<String,Generalization>();
+	private final AtomicLong numReused = new AtomicLong();
+	private final AtomicLong numRejected = new AtomicLong();
+
+	public GeneralizationMemo(int numSpotChecks) {
+		this.numSpotChecks = numSpotChecks;
+	}
+
+	private static String getKey(ConstantNode node, String fingerprint) {
+		return fingerprint + '\0' + node.getData().getExample();
+	}
+
+	public Maybe<MultiConstantNode> get(ConstantNode node, String fingerprint, DiscriminativeOracle oracle) {
+		String key = getKey(node, fingerprint);
+		Generalization generalization = this.generalizations.get(key);
+		if(generalization == null) {
+			return new Maybe<MultiConstantNode>();
+		}
+		// candidates are the characters the oracle accepted in place of the original one
+		String example = node.getData().getExample();
+		List<int[]> candidates = new ArrayList<int[]>();
+		for(int i=0; i<example.length(); i++) {
+			CharacterSet checks = generalization.characterChecks.get(i);
+			for(int j=0; j<checks.size(); j++) {
+				if(checks.get(j) != example.charAt(i)) {
+					candidates.add(new int[]{i, checks.get(j)});
+				}
+			}
+		}
+		Random random = new Random(key.hashCode());
+		for(int j=0; j<this.numSpotChecks && !candidates.isEmpty(); j++) {
+			int[] candidate = candidates.remove(random.nextInt(candidates.size()));
+			Context context = new Context(node.getData(), candidate[0], candidate[0]+1, candidate[0], candidate[0]+1);
+			if(!GrammarSynthesis.getCheck(oracle, context, Utils.getList("" + (char)candidate[1]))) {
+				Log.debug("Spot check failed for constant: " + CharacterUtils.queryToAnsiString(example));
+				this.numRejected.incrementAndGet();
+				return new Maybe<MultiConstantNode>();
+			}
+		}
+		this.numReused.incrementAndGet();
+		return new Maybe<MultiConstantNode>(new MultiConstantNode(node.getData(), generalization.characterOptions, generalization.characterChecks));
+	}
+
+	// the first generalization of a constant is kept
+	public void put(ConstantNode node, String fingerprint, MultiConstantNode generalization) {
+		this.generalizations.putIfAbsent(getKey(node, fingerprint), new Generalization(generalization));
+	}
+
+	public long getReused() {
+		return this.numReused.get();
+	}
+
+	public long getRejected() {
+		return this.numRejected.get();
+	}
+}
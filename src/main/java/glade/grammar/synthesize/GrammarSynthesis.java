@@ -25,16 +25,54 @@ import glade.grammar.GrammarUtils.NodeMerges;
 import glade.grammar.GrammarUtils.RepetitionNode;
 import glade.util.CharacterUtils;
 import glade.util.Log;
+import glade.util.OracleUtils;
 import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.Utils;
 import glade.util.Utils.Maybe;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class GrammarSynthesis {
-	private static Node getNode(String example, DiscriminativeOracle oracle) {
-		return GrammarTransformer.getTransform(RegexSynthesis.getNode(example, oracle), oracle);
+	private static ExecutorService seedExecutor = null;
+
+	// with more than one thread, the roots of several seeds are synthesized concurrently, the oracle must be thread safe
+	public static void setSeedThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Invalid number of seed threads: " + threads);
+		}
+		if(seedExecutor != null) {
+			seedExecutor.shutdown();
+		}
+		seedExecutor = threads == 1 ? null : Executors.newFixedThreadPool(threads, OracleUtils.getDaemonThreadFactory("glade-seed"));
+	}
+
+	private static int numSpotChecks = -1;
+
+	// reuses constant generalizations within and across the examples of one call, verified by the given number of
+	// spot checks, or -1 to generalize every constant
+	public static void setGeneralizationReuse(int spotChecks) {
+		numSpotChecks = spotChecks;
+	}
+
+	private static GeneralizationMemo getGeneralizationMemo() {
+		return numSpotChecks < 0 ? null : new GeneralizationMemo(numSpotChecks);
+	}
+
+	private static void logGeneralizationMemo(GeneralizationMemo memo) {
+		if(memo != null) {
+			Log.info("Reused constant generalizations: " + memo.getReused() + " (" + memo.getRejected() + " rejected by spot checks)");
+		}
+	}
+
+	private static Node getNode(String example, DiscriminativeOracle oracle, GeneralizationMemo memo) {
+		return GrammarTransformer.getTransform(RegexSynthesis.getNode(example, oracle), oracle, memo);
 	}
 
 	public static Grammar getGrammarSingle(String example, DiscriminativeOracle oracle) throws IOException {
@@ -43,7 +81,9 @@ public class GrammarSynthesis {
 			throw new RuntimeException("Invalid example: " + example);
 		}
 		Log.info("Processing example: " + CharacterUtils.queryToAnsiString(example));
-		Node node = getNode(example, oracle);
+		GeneralizationMemo memo = getGeneralizationMemo();
+		Node node = getNode(example, oracle, memo);
+		logGeneralizationMemo(memo);
 		Log.info("Single regex time: " + ((System.currentTimeMillis() - time)/1000.0) + " seconds");
 		time = System.currentTimeMillis();
 		Grammar grammar = new Grammar(node, MergesSynthesis.getMergesSingle(node, node, oracle));
@@ -52,18 +92,130 @@ public class GrammarSynthesis {
 	}
 
 	public static Grammar getGrammarMultipleFromRoots(List<Node> roots, DiscriminativeOracle oracle) {
+		return getGrammarMultipleFromRoots(roots, oracle, null);
+	}
+
+	private static Grammar getGrammarMultipleFromRoots(List<Node> roots, DiscriminativeOracle oracle, SynthesisCheckpoint checkpoint) {
 		long time = System.currentTimeMillis();
-		Grammar grammar = new Grammar(new MultiAlternationNode(new NodeData(null, new Context()), roots), MergesSynthesis.getMergesMultiple(roots, oracle));
+		Grammar grammar = new Grammar(new MultiAlternationNode(new NodeData(null, new Context()), roots), MergesSynthesis.getMergesMultiple(roots, oracle, checkpoint));
 		Log.info("Multiple merge time: " + ((System.currentTimeMillis() - time)/1000.0) + " seconds");
 		return grammar;
 	}
 
 	public static Grammar getGrammarMultiple(List<String> examples, DiscriminativeOracle oracle) {
+		return getGrammarMultiple(examples, oracle, null);
+	}
+
+	// finished roots and merges are stored in the checkpoint, if any, and restored from it when resuming
+	public static Grammar getGrammarMultiple(List<String> examples, DiscriminativeOracle oracle, SynthesisCheckpoint checkpoint) {
+		return getGrammarMultipleFromRoots(getRoots(examples, oracle, checkpoint), oracle, checkpoint);
+	}
+
+	// the roots of a grammar learned from multiple examples are the choices of its top-level alternation
+	public static List<Node> getRoots(Grammar grammar) {
+		return grammar.node instanceof MultiAlternationNode ? grammar.node.getChildren() : Utils.getList(grammar.node);
+	}
+
+	// extends the grammar with the roots of the new examples, merges are only synthesized for pairs involving a new root
+	public static Grammar getGrammarIncremental(Grammar base, List<String> examples, DiscriminativeOracle oracle) {
+		List<Node> baseRoots = getRoots(base);
+		List<Node> newRoots = getRoots(examples, oracle, null);
+		long time = System.currentTimeMillis();
+		List<Node> roots = new ArrayList<Node>(baseRoots);
+		roots.addAll(newRoots);
+		Grammar grammar = new Grammar(new MultiAlternationNode(new NodeData(null, new Context()), roots), MergesSynthesis.getMergesIncremental(baseRoots, base.merges, newRoots, oracle));
+		Log.info("Incremental merge time: " + ((System.currentTimeMillis() - time)/1000.0) + " seconds");
+		return grammar;
+	}
+
+	private static Maybe<Node> getRestoredRoot(SynthesisCheckpoint checkpoint, int index) {
+		Maybe<Node> root = checkpoint == null ? new Maybe<Node>() : checkpoint.getRoot(index);
+		if(root.hasT()) {
+			Log.info("Restored example " + index + " from checkpoint");
+		}
+		return root;
+	}
+
+	private static Node getRoot(List<String> examples, int index, DiscriminativeOracle oracle, SynthesisCheckpoint checkpoint, GeneralizationMemo memo) {
+		Maybe<Node> root = getRestoredRoot(checkpoint, index);
+		if(root.hasT()) {
+			return root.getT();
+		}
+		long time = System.currentTimeMillis();
+		Node node = getNode(examples.get(index), oracle, memo);
+		Log.info("Example " + index + " synthesis time: " + ((System.currentTimeMillis() - time)/1000.0) + " seconds");
+		if(checkpoint != null) {
+			checkpoint.putRoot(index, node);
+		}
+		return node;
+	}
+
+	private static Node getRegex(List<String> examples, int index, DiscriminativeOracle oracle) {
+		long time = System.currentTimeMillis();
+		Node node = RegexSynthesis.getNode(examples.get(index), oracle);
+		Log.info("Example " + index + " regex time: " + ((System.currentTimeMillis() - time)/1000.0) + " seconds");
+		return node;
+	}
+
+	// The roots are in the order of the examples, however many seeds are synthesized at a time. With reuse, only the
+	// regexes are synthesized concurrently; constants are generalized on this thread in the order of the examples, so
+	// that the memo reuses the same generalizations as a sequential run.
+	private static List<Node> getRoots(final List<String> examples, final DiscriminativeOracle oracle, final SynthesisCheckpoint checkpoint) {
 		List<Node> roots = new ArrayList<Node>();
-		for(String example : examples) {
-			roots.add(getNode(example, oracle));
+		GeneralizationMemo memo = getGeneralizationMemo();
+		if(seedExecutor == null) {
+			for(int i=0; i<examples.size(); i++) {
+				roots.add(getRoot(examples, i, oracle, checkpoint, memo));
+			}
+			logGeneralizationMemo(memo);
+			return roots;
 		}
-		return getGrammarMultipleFromRoots(roots, oracle);
+		List<Maybe<Node>> restoredRoots = new ArrayList<Maybe<Node>>();
+		List<Future<Node>> futures = new ArrayList<Future<Node>>();
+		for(int i=0; i<examples.size(); i++) {
+			final int index = i;
+			if(memo == null) {
+				futures.add(seedExecutor.submit(() -> getRoot(examples, index, oracle, checkpoint, null)));
+				continue;
+			}
+			Maybe<Node> restoredRoot = getRestoredRoot(checkpoint, i);
+			restoredRoots.add(restoredRoot);
+			futures.add(restoredRoot.hasT() ? null : seedExecutor.submit(() -> getRegex(examples, index, oracle)));
+		}
+		try {
+			for(int i=0; i<examples.size(); i++) {
+				if(memo == null) {
+					roots.add(futures.get(i).get());
+				} else if(restoredRoots.get(i).hasT()) {
+					roots.add(restoredRoots.get(i).getT());
+				} else {
+					Node regex = futures.get(i).get();
+					long time = System.currentTimeMillis();
+					Node node = GrammarTransformer.getTransform(regex, oracle, memo);
+					Log.info("Example " + i + " generalization time: " + ((System.currentTimeMillis() - time)/1000.0) + " seconds");
+					if(checkpoint != null) {
+						checkpoint.putRoot(i, node);
+					}
+					roots.add(node);
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while synthesizing examples!", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new RuntimeException("Error synthesizing example!", e.getCause());
+		} finally {
+			for(Future<Node> future : futures) {
+				if(future != null) {
+					future.cancel(false);
+				}
+			}
+		}
+		logGeneralizationMemo(memo);
+		return roots;
 	}
 
 	public static Grammar getRegularGrammarMultipleFromRoots(List<Node> roots, DiscriminativeOracle oracle) {
@@ -74,25 +226,37 @@ public class GrammarSynthesis {
 	}
 
 	public static Grammar getRegularGrammarMultiple(List<String> examples, DiscriminativeOracle oracle) {
-		List<Node> roots = new ArrayList<Node>();
-		for(String example : examples) {
-			roots.add(getNode(example, oracle));
-		}
-		return getRegularGrammarMultipleFromRoots(roots, oracle);
+		return getRegularGrammarMultipleFromRoots(getRoots(examples, oracle, null), oracle);
 	}
 
-	public static boolean getCheck(DiscriminativeOracle oracle, Context context, Iterable<String> examples) {
-		for(String example : examples) {
-			try {
-				if(!oracle.query(context.pre + example + context.post) || (context.useExtra() && !oracle.query(context.extraPre + example + context.extraPost))) {
-					return false;
+	// the queries are built as the oracle asks for them, a sequential oracle stops at the first invalid one
+	public static boolean getCheck(DiscriminativeOracle oracle, final Context context, final Iterable<String> examples) {
+		Iterable<String> queries = () -> new Iterator<String>() {
+			private final Iterator<String> exampleIterator = examples.iterator();
+			private String extraExample = null;
+			@Override
+			public boolean hasNext() {
+				return this.extraExample != null || this.exampleIterator.hasNext();
+			}
+			@Override
+			public String next() {
+				if(this.extraExample != null) {
+					String query = context.getExtraQuery(this.extraExample);
+					this.extraExample = null;
+					return query;
+				}
+				String example = this.exampleIterator.next();
+				if(context.useExtra()) {
+					this.extraExample = example;
 				}
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				return context.getQuery(example);
 			}
+		};
+		try {
+			return oracle.queryAll(queries);
+		} catch (IOException e) {
+			throw new RuntimeException("Error querying oracle!", e);
 		}
-		return true;
 	}
 
 	public static Maybe<List<Node>> getMultiAlternationRepetitionConstantChildren(Node node, boolean isParentRep) {
@@ -115,7 +279,7 @@ public class GrammarSynthesis {
 				if(!(repChild.end instanceof ConstantNode) && !(repChild.end instanceof MultiConstantNode)) {
 					return new Maybe<List<Node>>();
 				}
-				if(!repChild.start.getData().example.equals("") || !repChild.end.getData().example.equals("")) {
+				if(!repChild.start.getData().getExample().equals("") || !repChild.end.getData().getExample().equals("")) {
 					return new Maybe<List<Node>>();
 				}
 				constantChildren.add(repChild.rep);
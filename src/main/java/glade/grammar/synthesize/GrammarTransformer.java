@@ -14,29 +14,81 @@
 
 package glade.grammar.synthesize;
 
+import glade.grammar.GrammarCanonicalizer;
+import glade.grammar.GrammarUtils;
 import glade.grammar.GrammarUtils.AlternationNode;
 import glade.grammar.GrammarUtils.ConstantNode;
 import glade.grammar.GrammarUtils.Context;
+import glade.grammar.GrammarUtils.Grammar;
 import glade.grammar.GrammarUtils.MultiAlternationNode;
 import glade.grammar.GrammarUtils.MultiConstantNode;
 import glade.grammar.GrammarUtils.Node;
+import glade.grammar.GrammarUtils.NodeMerges;
 import glade.grammar.GrammarUtils.RepetitionNode;
+import glade.util.CharacterSet;
 import glade.util.CharacterUtils;
 import glade.util.Log;
 import glade.util.CharacterUtils.CharacterGeneralization;
 import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.Utils;
 import glade.util.Utils.Maybe;
 import glade.util.Utils.MultivalueMap;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class GrammarTransformer {
 	public static Node getTransform(Node node, DiscriminativeOracle oracle) {
+		return getTransform(node, oracle, null);
+	}
+
+	// constants generalized before are reused from the memo, if any
+	public static Node getTransform(Node node, DiscriminativeOracle oracle, GeneralizationMemo memo) {
 		Node transformFlatten = getTransform(node, new FlattenTransformer());
-		return getTransform(transformFlatten, new ConstantTransformer(oracle, getMultiAlternationRepetitionConstantNodes(transformFlatten)));
+		return getTransform(transformFlatten, new ConstantTransformer(oracle, getMultiAlternationRepetitionConstantNodes(transformFlatten), memo, getFingerprints(transformFlatten)));
+	}
+
+	// the position of each constant in its parent, and the characters just around it
+	private static void getFingerprintsHelper(Node node, String position, Map<Node,String> fingerprints) {
+		if(node instanceof ConstantNode) {
+			String pre = node.getData().getContext().getPre();
+			String post = node.getData().getContext().getPost();
+			fingerprints.put(node, position + ":" + pre.substring(Math.max(pre.length()-2, 0)) + ":" + post.substring(0, Math.min(post.length(), 2)));
+		} else if(node instanceof RepetitionNode) {
+			RepetitionNode repNode = (RepetitionNode)node;
+			getFingerprintsHelper(repNode.start, "start", fingerprints);
+			getFingerprintsHelper(repNode.rep, "rep", fingerprints);
+			getFingerprintsHelper(repNode.end, "end", fingerprints);
+		} else {
+			for(Node child : node.getChildren()) {
+				getFingerprintsHelper(child, "alt", fingerprints);
+			}
+		}
+	}
+
+	private static Map<Node,String> getFingerprints(Node root) {
+		Map<Node,String> fingerprints = new IdentityHashMap<Node,String>();
+		getFingerprintsHelper(root, "root", fingerprints);
+		return fingerprints;
+	}
+
+	private static MultiConstantNode generalizeConstant(ConstantNode node, DiscriminativeOracle oracle, GeneralizationMemo memo, Map<Node,String> fingerprints) {
+		if(memo == null || node.getData().getExample().length() == 0) {
+			return generalizeConstant(node, oracle);
+		}
+		String fingerprint = fingerprints.get(node);
+		Maybe<MultiConstantNode> reused = memo.get(node, fingerprint, oracle);
+		if(reused.hasT()) {
+			return reused.getT();
+		}
+		MultiConstantNode mconstNode = generalizeConstant(node, oracle);
+		memo.put(node, fingerprint, mconstNode);
+		return mconstNode;
 	}
 
 	private static interface NodeTransformer {
@@ -48,37 +100,76 @@ public class GrammarTransformer {
 	}
 
 	private static Node getTransform(Node node, NodeTransformer transformer) {
+		return getTransform(node, transformer, new IdentityHashMap<Node,Node>());
+	}
+
+	// a node shared by several parents is transformed once, transformed maps every node to its transform
+	private static Node getTransform(Node node, NodeTransformer transformer, Map<Node,Node> transformed) {
+		Node newNode = transformed.get(node);
+		if(newNode != null) {
+			return newNode;
+		}
 		if(node instanceof ConstantNode) {
-			return transformer.transformConstant((ConstantNode)node);
+			newNode = transformer.transformConstant((ConstantNode)node);
 		} else if(node instanceof MultiConstantNode) {
-			return transformer.transformMultiConstant((MultiConstantNode)node);
+			newNode = transformer.transformMultiConstant((MultiConstantNode)node);
 		} else if(node instanceof AlternationNode) {
 			AlternationNode altNode = (AlternationNode)node;
-			Node newFirst = getTransform(altNode.first, transformer);
-			Node newSecond = getTransform(altNode.second, transformer);
-			return transformer.transformAlternation(altNode, newFirst, newSecond);
+			Node newFirst = getTransform(altNode.first, transformer, transformed);
+			Node newSecond = getTransform(altNode.second, transformer, transformed);
+			newNode = transformer.transformAlternation(altNode, newFirst, newSecond);
 		} else if(node instanceof MultiAlternationNode) {
 			List<Node> newChildren = new ArrayList<Node>();
 			for(Node child : node.getChildren()) {
-				newChildren.add(getTransform(child, transformer));
+				newChildren.add(getTransform(child, transformer, transformed));
 			}
-			return transformer.transformMultiAlternation((MultiAlternationNode)node, newChildren);
+			newNode = transformer.transformMultiAlternation((MultiAlternationNode)node, newChildren);
 		} else if(node instanceof RepetitionNode) {
 			RepetitionNode repNode = (RepetitionNode)node;
-			Node newStart = getTransform(repNode.start, transformer);
-			Node newRep = getTransform(repNode.rep, transformer);
-			Node newEnd = getTransform(repNode.end, transformer);
-			return transformer.transformRepetition(repNode, newStart, newRep, newEnd);
+			Node newStart = getTransform(repNode.start, transformer, transformed);
+			Node newRep = getTransform(repNode.rep, transformer, transformed);
+			Node newEnd = getTransform(repNode.end, transformer, transformed);
+			newNode = transformer.transformRepetition(repNode, newStart, newRep, newEnd);
 		} else {
 			throw new RuntimeException("Invalid node type: " + node.getClass().getName());
 		}
+		transformed.put(node, newNode);
+		return newNode;
+	}
+
+	// a generalization whose checks fail is refined into its children, if any
+	private static void generalizeCharacter(char curC, Context curContext, List<CharacterGeneralization> generalizations, DiscriminativeOracle oracle, List<Character> characterOption, List<Character> characterCheck) {
+		for(CharacterGeneralization generalization : generalizations) {
+			if(generalization.triggers.contains(curC)) {
+				List<String> checks = new ArrayList<String>();
+				for(char c : generalization.checks) {
+					if(curC != c) {
+						checks.add("" + c);
+					}
+				}
+				if(GrammarSynthesis.getCheck(oracle, curContext, checks)) {
+					for(char c : generalization.characters) {
+						if(curC != c) {
+							characterOption.add(c);
+						}
+					}
+					for(char c : generalization.checks) {
+						if(curC != c) {
+							characterCheck.add(c);
+						}
+					}
+				} else {
+					generalizeCharacter(curC, curContext, generalization.children, oracle, characterOption, characterCheck);
+				}
+			}
+		}
 	}
 
 	private static MultiConstantNode generalizeConstant(ConstantNode node, DiscriminativeOracle oracle) {
-		String example = node.getData().example;
-		Context context = node.getData().context;
+		String example = node.getData().getExample();
+		Context context = node.getData().getContext();
 		if(example.length() != 0) {
-			Log.info("Generalizing constant: " + CharacterUtils.queryToAnsiString(context.pre) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(example) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(context.post));
+			Log.info("Generalizing constant: " + CharacterUtils.queryToAnsiString(context.getPre()) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(example) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(context.getPost()));
 		}
 		List<List<Character>> characterOptions = new ArrayList<List<Character>>();
 		List<List<Character>> characterChecks = new ArrayList<List<Character>>();
@@ -86,31 +177,10 @@ public class GrammarTransformer {
 			List<Character> characterOption = new ArrayList<Character>();
 			List<Character> characterCheck = new ArrayList<Character>();
 			char curC = example.charAt(i);
-			Context curContext = new Context(context, example.substring(0, i), example.substring(i+1), example.substring(0, i), example.substring(i+1));
+			Context curContext = new Context(node.getData(), i, i+1, i, i+1);
 			characterOption.add(curC);
 			characterCheck.add(curC);
-			for(CharacterGeneralization generalization : CharacterUtils.getGeneralizations()) {
-				if(generalization.triggers.contains(curC)) {
-					List<String> checks = new ArrayList<String>();
-					for(char c : generalization.checks) {
-						if(curC != c) {
-							checks.add("" + c);
-						}
-					}
-					if(GrammarSynthesis.getCheck(oracle, curContext, checks)) {
-						for(char c : generalization.characters) {
-							if(curC != c) {
-								characterOption.add(c);
-							}
-						}
-						for(char c : generalization.checks) {
-							if(curC != c) {
-								characterCheck.add(c);
-							}
-						}
-					}
-				}
-			}
+			generalizeCharacter(curC, curContext, CharacterUtils.getGeneralizations(), oracle, characterOption, characterCheck);
 			characterOptions.add(characterOption);
 			characterChecks.add(characterCheck);
 		}
@@ -138,12 +208,12 @@ public class GrammarTransformer {
 		return false;
 	}
 
-	private static MultiAlternationNode generalizeMultiAlternationConstant(MultiAlternationNode node, MultivalueMap<MultiAlternationNode,ConstantNode> multiAlternationNodeConstantChildren, DiscriminativeOracle oracle) {
+	private static MultiAlternationNode generalizeMultiAlternationConstant(MultiAlternationNode node, MultivalueMap<MultiAlternationNode,ConstantNode> multiAlternationNodeConstantChildren, DiscriminativeOracle oracle, GeneralizationMemo memo, Map<Node,String> fingerprints) {
 		List<MultiConstantNode> curConsts = new ArrayList<MultiConstantNode>();
-		Log.info("Generalizing multi alternation node: " + CharacterUtils.queryToAnsiString(node.getData().example));
+		Log.info("Generalizing multi alternation node: " + CharacterUtils.queryToAnsiString(node.getData().getExample()));
 		for(Node child : multiAlternationNodeConstantChildren.get(node)) {
-			if(!isContained(child.getData().example, curConsts)) {
-				curConsts.add(generalizeConstant((ConstantNode)child, oracle));
+			if(!isContained(child.getData().getExample(), curConsts)) {
+				curConsts.add(generalizeConstant((ConstantNode)child, oracle, memo, fingerprints));
 			}
 		}
 		return new MultiAlternationNode(node.getData(), new ArrayList<Node>(curConsts));
@@ -153,15 +223,19 @@ public class GrammarTransformer {
 		private final DiscriminativeOracle oracle;
 		private final MultivalueMap<MultiAlternationNode,ConstantNode> multiAlternationNodeConstantChildren;
 		private final Set<ConstantNode> ignoredConstants = new HashSet<ConstantNode>();;
-		private ConstantTransformer(DiscriminativeOracle oracle, MultivalueMap<MultiAlternationNode,ConstantNode> multiAlternationNodeConstantChildren) {
+		private final GeneralizationMemo memo;
+		private final Map<Node,String> fingerprints;
+		private ConstantTransformer(DiscriminativeOracle oracle, MultivalueMap<MultiAlternationNode,ConstantNode> multiAlternationNodeConstantChildren, GeneralizationMemo memo, Map<Node,String> fingerprints) {
 			this.oracle = oracle;
 			this.multiAlternationNodeConstantChildren = multiAlternationNodeConstantChildren;
+			this.memo = memo;
+			this.fingerprints = fingerprints;
 			for(MultiAlternationNode maltNode : multiAlternationNodeConstantChildren.keySet()) {
 				this.ignoredConstants.addAll(multiAlternationNodeConstantChildren.get(maltNode));
 			}
 		}
 		public Node transformConstant(ConstantNode node) {
-			return this.ignoredConstants.contains(node) ? node : generalizeConstant(node, this.oracle);
+			return this.ignoredConstants.contains(node) ? node : generalizeConstant(node, this.oracle, this.memo, this.fingerprints);
 		}
 		public Node transformMultiConstant(MultiConstantNode node) {
 			throw new RuntimeException("Invalid node: " + node);
@@ -170,7 +244,7 @@ public class GrammarTransformer {
 			return new AlternationNode(node.getData(), newFirst, newSecond);
 		}
 		public Node transformMultiAlternation(MultiAlternationNode node, List<Node> newChildren) {
-			return this.multiAlternationNodeConstantChildren.containsKey(node) ? generalizeMultiAlternationConstant(node, this.multiAlternationNodeConstantChildren, this.oracle) : new MultiAlternationNode(node.getData(), newChildren);
+			return this.multiAlternationNodeConstantChildren.containsKey(node) ? generalizeMultiAlternationConstant(node, this.multiAlternationNodeConstantChildren, this.oracle, this.memo, this.fingerprints) : new MultiAlternationNode(node.getData(), newChildren);
 		}
 		public Node transformRepetition(RepetitionNode node, Node newStart, Node newRep, Node newEnd) {
 			return new RepetitionNode(node.getData(), newStart, newRep, newEnd);
@@ -206,6 +280,148 @@ public class GrammarTransformer {
 		}
 	}
 
+	// Rewrites that keep the language of the grammar: nested alternations are flattened, duplicate alternatives
+	// and multi-constants contained in another alternative are dropped, single alternatives replace their
+	// alternation, and a repetition of the empty constant is replaced by its start and end. Merged nodes and
+	// their ancestors are pinned: they are kept in the grammar and keep their type, so merges stay valid.
+	private static class SimplifyTransformer implements NodeTransformer {
+		private final Set<Node> pinned = Collections.newSetFromMap(new IdentityHashMap<Node,Boolean>());
+		private SimplifyTransformer(Node root, NodeMerges merges) {
+			this.pin(root, merges, new IdentityHashMap<Node,Boolean>());
+		}
+		private boolean pin(Node node, NodeMerges merges, Map<Node,Boolean> visited) {
+			Boolean isPinned = visited.get(node);
+			if(isPinned == null) {
+				isPinned = merges.getId(node) != -1;
+				for(Node child : node.getChildren()) {
+					isPinned = this.pin(child, merges, visited) || isPinned;
+				}
+				visited.put(node, isPinned);
+				if(isPinned) {
+					this.pinned.add(node);
+				}
+			}
+			return isPinned;
+		}
+		private Node getResult(Node node, Node newNode) {
+			if(this.pinned.contains(node)) {
+				this.pinned.add(newNode);
+			}
+			return newNode;
+		}
+		private boolean isEmpty(Node node) {
+			return node instanceof MultiConstantNode && ((MultiConstantNode)node).characterOptions.isEmpty() && !this.pinned.contains(node);
+		}
+		public Node transformConstant(ConstantNode node) {
+			return node;
+		}
+		public Node transformMultiConstant(MultiConstantNode node) {
+			return node;
+		}
+		public Node transformAlternation(AlternationNode node, Node newFirst, Node newSecond) {
+			if(newFirst == newSecond && !this.pinned.contains(node)) {
+				return newFirst;
+			}
+			return this.getResult(node, newFirst == node.first && newSecond == node.second ? node : new AlternationNode(node.getData(), newFirst, newSecond));
+		}
+		public Node transformMultiAlternation(MultiAlternationNode node, List<Node> newChildren) {
+			List<Node> flatChildren = new ArrayList<Node>();
+			Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<Node,Boolean>());
+			for(Node child : newChildren) {
+				for(Node flatChild : child instanceof MultiAlternationNode && !this.pinned.contains(child) ? child.getChildren() : Utils.getList(child)) {
+					if(seen.add(flatChild)) {
+						flatChildren.add(flatChild);
+					}
+				}
+			}
+			List<Node> keptChildren = new ArrayList<Node>();
+			for(int i=0; i<flatChildren.size(); i++) {
+				if(!this.isSubsumed(flatChildren, i)) {
+					keptChildren.add(flatChildren.get(i));
+				}
+			}
+			if(keptChildren.size() == 1 && !this.pinned.contains(node)) {
+				return keptChildren.get(0);
+			}
+			return this.getResult(node, keptChildren.equals(node.getChildren()) ? node : new MultiAlternationNode(node.getData(), keptChildren));
+		}
+		// of two multi-constants with the same options, the first one is kept
+		private boolean isSubsumed(List<Node> children, int index) {
+			Node node = children.get(index);
+			if(!(node instanceof MultiConstantNode) || this.pinned.contains(node)) {
+				return false;
+			}
+			for(int i=0; i<children.size(); i++) {
+				Node other = children.get(i);
+				if(i != index && other instanceof MultiConstantNode && isContained((MultiConstantNode)node, (MultiConstantNode)other) && (i < index || !isContained((MultiConstantNode)other, (MultiConstantNode)node))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		public Node transformRepetition(RepetitionNode node, Node newStart, Node newRep, Node newEnd) {
+			if(this.isEmpty(newRep) && !this.pinned.contains(node)) {
+				if(this.isEmpty(newStart)) {
+					return newEnd;
+				} else if(this.isEmpty(newEnd)) {
+					return newStart;
+				} else if(newStart instanceof MultiConstantNode && newEnd instanceof MultiConstantNode && !this.pinned.contains(newStart) && !this.pinned.contains(newEnd)) {
+					List<CharacterSet> characterOptions = new ArrayList<CharacterSet>(((MultiConstantNode)newStart).characterOptions);
+					characterOptions.addAll(((MultiConstantNode)newEnd).characterOptions);
+					List<CharacterSet> characterChecks = new ArrayList<CharacterSet>(((MultiConstantNode)newStart).characterChecks);
+					characterChecks.addAll(((MultiConstantNode)newEnd).characterChecks);
+					return new MultiConstantNode(node.getData(), characterOptions, characterChecks);
+				}
+			}
+			return this.getResult(node, newStart == node.start && newRep == node.rep && newEnd == node.end ? node : new RepetitionNode(node.getData(), newStart, newRep, newEnd));
+		}
+	}
+
+	// whether every string of the first node is a string of the second one
+	private static boolean isContained(MultiConstantNode first, MultiConstantNode second) {
+		if(first.characterOptions.size() != second.characterOptions.size()) {
+			return false;
+		}
+		for(int i=0; i<first.characterOptions.size(); i++) {
+			if(!second.characterOptions.get(i).containsAll(first.characterOptions.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String getSize(Grammar grammar) {
+		int numNodes = 0;
+		int numPositions = 0;
+		for(Node node : GrammarUtils.getAllNodes(grammar.node)) {
+			numNodes++;
+			if(node instanceof MultiConstantNode) {
+				numPositions += ((MultiConstantNode)node).characterOptions.size();
+			}
+		}
+		int numMerges = 0;
+		for(int i=0; i<grammar.merges.size(); i++) {
+			numMerges += grammar.merges.getNumMerges(i);
+		}
+		return numNodes + " nodes, " + numPositions + " characters, " + numMerges/2 + " merges";
+	}
+
+	// equal subtrees are shared before and after simplifying, see GrammarCanonicalizer
+	public static Grammar getSimplifiedGrammar(Grammar grammar, boolean stripContexts) {
+		Grammar canonicalGrammar = GrammarCanonicalizer.getCanonicalGrammar(grammar, stripContexts);
+		Map<Node,Node> transformed = new IdentityHashMap<Node,Node>();
+		Node newRoot = getTransform(canonicalGrammar.node, new SimplifyTransformer(canonicalGrammar.node, canonicalGrammar.merges), transformed);
+		NodeMerges newMerges = new NodeMerges();
+		for(int i=0; i<canonicalGrammar.merges.size(); i++) {
+			for(int j=0; j<canonicalGrammar.merges.getNumMerges(i); j++) {
+				newMerges.add(transformed.get(canonicalGrammar.merges.getNode(i)), transformed.get(canonicalGrammar.merges.getNode(canonicalGrammar.merges.getMerge(i, j))));
+			}
+		}
+		Grammar simplifiedGrammar = GrammarCanonicalizer.getCanonicalGrammar(new Grammar(newRoot, newMerges), stripContexts);
+		Log.info("Simplified grammar from " + getSize(grammar) + " to " + getSize(simplifiedGrammar));
+		return simplifiedGrammar;
+	}
+
 	private static void getMultiAlternationRepetitionConstantNodesHelper(Node node, MultivalueMap<MultiAlternationNode,ConstantNode> result, boolean isParentRep) {
 		Maybe<List<Node>> constantChildren = GrammarSynthesis.getMultiAlternationRepetitionConstantChildren(node, isParentRep);
 		if(constantChildren.hasT()) {
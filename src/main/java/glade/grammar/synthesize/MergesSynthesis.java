@@ -22,142 +22,390 @@ import glade.grammar.GrammarUtils.MultiConstantNode;
 import glade.grammar.GrammarUtils.Node;
 import glade.grammar.GrammarUtils.NodeMerges;
 import glade.grammar.GrammarUtils.RepetitionNode;
+import glade.util.CharacterSet;
 import glade.util.CharacterUtils;
 import glade.util.Log;
+import glade.util.OracleUtils;
 import glade.util.OracleUtils.DiscriminativeOracle;
-import glade.util.Utils.MultivalueMap;
+import glade.util.Utils.Maybe;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class MergesSynthesis {
+	private static ExecutorService mergeExecutor = null;
+	private static int mergeThreads = 1;
+
+	// with more than one thread, candidate merges are checked concurrently, the oracle must be thread safe
+	public static void setMergeThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Invalid number of merge threads: " + threads);
+		}
+		if(mergeExecutor != null) {
+			mergeExecutor.shutdown();
+		}
+		mergeThreads = threads;
+		mergeExecutor = threads == 1 ? null : Executors.newFixedThreadPool(threads, OracleUtils.getDaemonThreadFactory("glade-merge"));
+	}
+
 	public static NodeMerges getMergesMultiple(List<Node> roots, DiscriminativeOracle oracle) {
+		return getMergesMultiple(roots, oracle, null);
+	}
+
+	public static NodeMerges getMergesMultiple(List<Node> roots, DiscriminativeOracle oracle, SynthesisCheckpoint checkpoint) {
+		if(checkpoint != null) {
+			checkpoint.setRoots(roots);
+		}
 		NodeMerges merges = new NodeMerges();
 		NodeMerges processed = new NodeMerges();
-		for(Node first : roots) {
-			for(Node second : roots) {
+		MergeClasses classes = new MergeClasses();
+		List<RootIndex> indices = getIndices(roots);
+		for(int i=0; i<roots.size(); i++) {
+			for(int j=0; j<roots.size(); j++) {
+				Node first = roots.get(i);
+				Node second = roots.get(j);
 				if(processed.contains(first, second)) {
 					continue;
 				}
 				processed.add(first, second);
-				merges.addAll(getMergesSingle(first, second, oracle));
+				Maybe<NodeMerges> pairMerges = checkpoint == null ? new Maybe<NodeMerges>() : checkpoint.getMerges(i, j);
+				if(pairMerges.hasT()) {
+					Log.debug("Restored merges of examples " + i + " and " + j + " from checkpoint");
+					merges.addAll(pairMerges.getT());
+					classes.mergeAll(pairMerges.getT());
+					continue;
+				}
+				NodeMerges newMerges = getMergesSingle(indices.get(i), indices.get(j), oracle, classes);
+				if(checkpoint != null) {
+					checkpoint.putMerges(i, j, newMerges);
+				}
+				merges.addAll(newMerges);
 			}
 		}
 		return merges;
 	}
 
-	public static NodeMerges getMergesSingle(Node firstRoot, Node secondRoot, DiscriminativeOracle oracle) {
+	// merges among the base roots are taken as they are, only pairs involving a new root are checked
+	public static NodeMerges getMergesIncremental(List<Node> baseRoots, NodeMerges baseMerges, List<Node> newRoots, DiscriminativeOracle oracle) {
+		List<Node> roots = new ArrayList<Node>(baseRoots);
+		roots.addAll(newRoots);
 		NodeMerges merges = new NodeMerges();
+		merges.addAll(baseMerges);
+		MergeClasses classes = new MergeClasses();
+		classes.mergeAll(baseMerges);
+		NodeMerges processed = new NodeMerges();
+		List<RootIndex> indices = getIndices(roots);
+		// same pair order as getMergesMultiple
+		for(int i=0; i<roots.size(); i++) {
+			for(int j=Math.max(i, baseRoots.size()); j<roots.size(); j++) {
+				Node first = roots.get(i);
+				Node second = roots.get(j);
+				if(processed.contains(first, second)) {
+					continue;
+				}
+				processed.add(first, second);
+				merges.addAll(getMergesSingle(indices.get(i), indices.get(j), oracle, classes));
+			}
+		}
+		return merges;
+	}
+
+	public static NodeMerges getMergesSingle(Node firstRoot, Node secondRoot, DiscriminativeOracle oracle) {
+		RootIndex firstIndex = new RootIndex(firstRoot);
+		return getMergesSingle(firstIndex, firstRoot == secondRoot ? firstIndex : new RootIndex(secondRoot), oracle, new MergeClasses());
+	}
+
+	// Candidate pairs are the repetitions passing the structural filters, pairs with reps of the same shape first
+	// as they are the most likely to merge. Pairs whose reps are already merged, possibly through other nodes,
+	// are implied and skipped.
+	private static NodeMerges getMergesSingle(RootIndex firstIndex, RootIndex secondIndex, DiscriminativeOracle oracle, MergeClasses classes) {
+		List<RepetitionNode> firstCandidates = firstIndex.candidates;
+		List<RepetitionNode> secondCandidates = secondIndex.candidates;
+		Map<Node,String> signatures = new IdentityHashMap<Node,String>();
+		List<RepetitionNode[]> samePairs = new ArrayList<RepetitionNode[]>();
+		List<RepetitionNode[]> otherPairs = new ArrayList<RepetitionNode[]>();
 		NodeMerges processedMerges = new NodeMerges();
-		MultivalueMap<Node,String> pairFirst = getAllExamples(firstRoot);
-		MultivalueMap<Node,String> pairSecond = getAllExamples(secondRoot);
-		for(Node first : GrammarUtils.getAllNodes(firstRoot)) {
-			for(Node second : GrammarUtils.getAllNodes(secondRoot)) {
-				if(processedMerges.contains(first, second)) {
+		for(RepetitionNode first : firstCandidates) {
+			for(RepetitionNode second : secondCandidates) {
+				if(first.equals(second) || processedMerges.contains(first, second)) {
 					continue;
 				}
 				processedMerges.add(first, second);
-				getMergesHelper(first, second, pairFirst, pairSecond, oracle, merges);
+				boolean isSame = getSignature(first.rep, signatures).equals(getSignature(second.rep, signatures));
+				(isSame ? samePairs : otherPairs).add(new RepetitionNode[]{first, second});
 			}
 		}
+		NodeMerges merges = new NodeMerges();
+		getMergesHelper(samePairs, firstIndex, secondIndex, oracle, classes, merges);
+		getMergesHelper(otherPairs, firstIndex, secondIndex, oracle, classes, merges);
 		return merges;
 	}
 
-	private static void getMergesHelper(Node first, Node second, MultivalueMap<Node,String> firstExampleMap, MultivalueMap<Node,String> secondExampleMap, DiscriminativeOracle oracle, NodeMerges merges) {
-		if(first.equals(second)) {
-			return;
-		}
-		if(!(first instanceof RepetitionNode) || !(second instanceof RepetitionNode)) {
-			return;
-		}
-		Node firstRep = ((RepetitionNode)first).rep;
-		Node secondRep = ((RepetitionNode)second).rep;
-		if(firstRep instanceof ConstantNode || firstRep instanceof MultiConstantNode || secondRep instanceof ConstantNode || secondRep instanceof MultiConstantNode) {
+	// With a merge executor, the checks of the next pairs run ahead, at most one per thread. Merges are still
+	// committed in the order of the pairs, and a pair implied by the merges committed before it is skipped, so the
+	// merges are the same as without the executor; only the checks of pairs that turn out to be implied are wasted.
+	private static void getMergesHelper(List<RepetitionNode[]> pairs, final RootIndex firstIndex, final RootIndex secondIndex, final DiscriminativeOracle oracle, MergeClasses classes, NodeMerges merges) {
+		if(mergeExecutor == null) {
+			for(RepetitionNode[] pair : pairs) {
+				if(!classes.isMerged(pair[0].rep, pair[1].rep) && isMerge(pair[0].rep, pair[1].rep, firstIndex, secondIndex, oracle)) {
+					addMerge(pair[0].rep, pair[1].rep, classes, merges);
+				}
+			}
 			return;
 		}
-		if(isMultiAlternationRepetitionConstant(firstRep, true) || isMultiAlternationRepetitionConstant(secondRep, true)) {
-			return;
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		try {
+			for(int i=0; i<pairs.size(); i++) {
+				while(futures.size() < pairs.size() && futures.size() < i + mergeThreads) {
+					final RepetitionNode[] nextPair = pairs.get(futures.size());
+					if(classes.isMerged(nextPair[0].rep, nextPair[1].rep)) {
+						futures.add(CompletableFuture.completedFuture(false));
+					} else {
+						futures.add(mergeExecutor.submit(() -> isMerge(nextPair[0].rep, nextPair[1].rep, firstIndex, secondIndex, oracle)));
+					}
+				}
+				RepetitionNode[] pair = pairs.get(i);
+				if(futures.get(i).get() && !classes.isMerged(pair[0].rep, pair[1].rep)) {
+					addMerge(pair[0].rep, pair[1].rep, classes, merges);
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while synthesizing merges!", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new RuntimeException("Error synthesizing merges!", e.getCause());
+		} finally {
+			for(Future<Boolean> future : futures) {
+				future.cancel(false);
+			}
 		}
+	}
+
+	// the oracle checks of a candidate merge, independent of the merges found so far
+	private static boolean isMerge(Node firstRep, Node secondRep, RootIndex firstIndex, RootIndex secondIndex, DiscriminativeOracle oracle) {
 		List<String> firstExamplesSimple = new ArrayList<String>();
 		List<String> secondExamplesSimple = new ArrayList<String>();
-		firstExamplesSimple.add(secondRep.getData().example + secondRep.getData().example);
-		secondExamplesSimple.add(firstRep.getData().example + firstRep.getData().example);
-		if(!GrammarSynthesis.getCheck(oracle, firstRep.getData().context, firstExamplesSimple) || !GrammarSynthesis.getCheck(oracle, secondRep.getData().context, secondExamplesSimple)) {
-			return;
+		firstExamplesSimple.add(secondRep.getData().getExample() + secondRep.getData().getExample());
+		secondExamplesSimple.add(firstRep.getData().getExample() + firstRep.getData().getExample());
+		if(!GrammarSynthesis.getCheck(oracle, firstRep.getData().getContext(), firstExamplesSimple) || !GrammarSynthesis.getCheck(oracle, secondRep.getData().getContext(), secondExamplesSimple)) {
+			return false;
 		}
 		List<String> firstExamples = new ArrayList<String>();
-		for(String example : secondExampleMap.get(secondRep)) {
+		for(String example : secondIndex.getExamples(secondRep)) {
 			firstExamples.add(example + example);
 		}
 		List<String> secondExamples = new ArrayList<String>();
-		for(String example : firstExampleMap.get(firstRep)) {
+		for(String example : firstIndex.getExamples(firstRep)) {
 			secondExamples.add(example + example);
 		}
-		if((isStructuredExample(firstRep) && isStructuredExample(secondRep))
-				|| (GrammarSynthesis.getCheck(oracle, firstRep.getData().context, firstExamples) && GrammarSynthesis.getCheck(oracle, secondRep.getData().context, secondExamples))) {
-			Log.info("First merge node: " + CharacterUtils.queryToAnsiString(firstRep.getData().context.pre) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(firstRep.getData().example)
-                     + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(firstRep.getData().context.post));
-			Log.info("Second merge node: " + CharacterUtils.queryToAnsiString(secondRep.getData().context.pre) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(secondRep.getData().example)
-                     + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(secondRep.getData().context.post));
-			merges.add(firstRep, secondRep);
-		}
+		return (isStructuredExample(firstRep) && isStructuredExample(secondRep))
+				|| (GrammarSynthesis.getCheck(oracle, firstRep.getData().getContext(), firstExamples) && GrammarSynthesis.getCheck(oracle, secondRep.getData().getContext(), secondExamples));
 	}
 
-	private static void getAllExamplesHelper(Node node, MultivalueMap<Node,String> examples) {
-		for(Node child : node.getChildren()) {
-			getAllExamplesHelper(child, examples);
-		}
-		if(node instanceof RepetitionNode) {
-			RepetitionNode repNode = (RepetitionNode)node;
-			for(String example : examples.get(repNode.start)) {
-				examples.add(repNode, example + repNode.rep.getData().example + repNode.end.getData().example);
+	private static void addMerge(Node firstRep, Node secondRep, MergeClasses classes, NodeMerges merges) {
+		Log.info("First merge node: " + CharacterUtils.queryToAnsiString(firstRep.getData().getContext().getPre()) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(firstRep.getData().getExample())
+                 + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(firstRep.getData().getContext().getPost()));
+		Log.info("Second merge node: " + CharacterUtils.queryToAnsiString(secondRep.getData().getContext().getPre()) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(secondRep.getData().getExample())
+                 + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(secondRep.getData().getContext().getPost()));
+		classes.merge(firstRep, secondRep);
+		merges.add(firstRep, secondRep);
+	}
+
+	// repetitions whose rep may be merged at all
+	private static List<RepetitionNode> getCandidates(Node root) {
+		List<RepetitionNode> candidates = new ArrayList<RepetitionNode>();
+		for(Node node : GrammarUtils.getAllNodes(root)) {
+			if(!(node instanceof RepetitionNode)) {
+				continue;
 			}
-			for(String example : examples.get(repNode.rep)) {
-				examples.add(repNode, repNode.start.getData().example + example + repNode.end.getData().example);
+			Node rep = ((RepetitionNode)node).rep;
+			if(rep instanceof ConstantNode || rep instanceof MultiConstantNode || isMultiAlternationRepetitionConstant(rep, true)) {
+				continue;
 			}
-			for(String example : examples.get(repNode.end)) {
-				examples.add(repNode, repNode.start.getData().example + repNode.rep.getData().example + example);
+			candidates.add((RepetitionNode)node);
+		}
+		return candidates;
+	}
+
+	// the node types of the subtree
+	private static String getSignature(Node node, Map<Node,String> signatures) {
+		String signature = signatures.get(node);
+		if(signature == null) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(node.getClass().getSimpleName().charAt(0));
+			List<Node> children = node.getChildren();
+			if(!children.isEmpty()) {
+				sb.append('(');
+				for(int i=0; i<children.size(); i++) {
+					sb.append(i == 0 ? "" : ",").append(getSignature(children.get(i), signatures));
+				}
+				sb.append(')');
 			}
-		} else if(node instanceof MultiConstantNode) {
-			MultiConstantNode mconstNode = (MultiConstantNode)node;
-			String example = mconstNode.getData().example;
-			for(int i=0; i<mconstNode.characterChecks.size(); i++) {
-				String pre = example.substring(0, i);
-				String post = example.substring(i+1);
-				for(char c : mconstNode.characterChecks.get(i)) {
-					examples.add(mconstNode, pre + c + post);
+			signature = sb.toString();
+			signatures.put(node, signature);
+		}
+		return signature;
+	}
+
+	// union-find over merged nodes
+	private static class MergeClasses {
+		private final Map<Node,Node> parents = new IdentityHashMap<Node,Node>();
+		private Node find(Node node) {
+			Node parent;
+			while((parent = this.parents.get(node)) != null) {
+				Node grandparent = this.parents.get(parent);
+				if(grandparent != null) {
+					this.parents.put(node, grandparent);
 				}
+				node = parent;
 			}
-		} else if(node instanceof AlternationNode) {
-			AlternationNode altNode = (AlternationNode)node;
-			for(String example : examples.get(altNode.first)) {
-				examples.add(altNode, example);
-			}
-			for(String example : examples.get(altNode.second)) {
-				examples.add(altNode, example);
-			}
-		} else if(node instanceof ConstantNode) {
-			ConstantNode constNode = (ConstantNode)node;
-			examples.add(constNode, constNode.getData().example);
-		} else if(node instanceof MultiAlternationNode) {
-			MultiAlternationNode maltNode = (MultiAlternationNode)node;
-			for(Node child : maltNode.getChildren()) {
-				for(String example : examples.get(child)) {
-					examples.add(maltNode, example);
+			return node;
+		}
+		private synchronized boolean isMerged(Node first, Node second) {
+			return this.find(first) == this.find(second);
+		}
+		private synchronized void merge(Node first, Node second) {
+			Node firstClass = this.find(first);
+			Node secondClass = this.find(second);
+			if(firstClass != secondClass) {
+				this.parents.put(firstClass, secondClass);
+			}
+		}
+		private synchronized void mergeAll(NodeMerges merges) {
+			for(int i=0; i<merges.size(); i++) {
+				for(int j=0; j<merges.getNumMerges(i); j++) {
+					this.merge(merges.getNode(i), merges.getNode(merges.getMerge(i, j)));
 				}
 			}
-		} else {
-			throw new RuntimeException("Invalid node type: " + node.getClass().getName());
 		}
 	}
 
-	private static MultivalueMap<Node,String> getAllExamples(Node root) {
-		MultivalueMap<Node,String> allExamples = new MultivalueMap<Node,String>();
-		getAllExamplesHelper(root, allExamples);
-		return allExamples;
+	// built lazily, each root is indexed once however many pairs it is part of
+	private static List<RootIndex> getIndices(List<Node> roots) {
+		List<RootIndex> indices = new ArrayList<RootIndex>();
+		for(Node root : roots) {
+			indices.add(new RootIndex(root));
+		}
+		return indices;
+	}
+
+	// An example of a node is the string of one of its alternatives with at most one character substituted, kept
+	// as a reference to the shared string of the alternative rather than as a string of its own.
+	private static class Example {
+		private final String base;
+		private final int offset; // -1 if no character is substituted
+		private final char c;
+		private Example(String base, int offset, char c) {
+			boolean isSubstituted = offset != -1 && base.charAt(offset) != c;
+			this.base = base;
+			this.offset = isSubstituted ? offset : -1;
+			this.c = isSubstituted ? c : '\0';
+		}
+		private Example shift(String base, int shift) {
+			return new Example(base, this.offset == -1 ? -1 : this.offset + shift, this.c);
+		}
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof Example)) {
+				return false;
+			}
+			Example example = (Example)other;
+			return this.offset == example.offset && this.c == example.c && this.base.equals(example.base);
+		}
+		@Override
+		public int hashCode() {
+			return 31*(31*this.base.hashCode() + this.offset) + this.c;
+		}
+		@Override
+		public String toString() {
+			return this.offset == -1 ? this.base : this.base.substring(0, this.offset) + this.c + this.base.substring(this.offset+1);
+		}
 	}
 
+	// the merge candidates of a root and the examples of its nodes, computed when first requested
+	private static class RootIndex {
+		private final List<RepetitionNode> candidates;
+		private final Map<Node,Collection<Example>> examples = new IdentityHashMap<Node,Collection<Example>>();
+
+		private RootIndex(Node root) {
+			this.candidates = getCandidates(root);
+		}
+
+		private synchronized Set<String> getExamples(Node node) {
+			Set<String> strings = new HashSet<String>();
+			for(Example example : this.getExampleSet(node)) {
+				strings.add(example.toString());
+			}
+			return strings;
+		}
+
+		private Collection<Example> getExampleSet(Node node) {
+			Collection<Example> nodeExamples = this.examples.get(node);
+			if(nodeExamples == null) {
+				nodeExamples = this.computeExamples(node);
+				this.examples.put(node, nodeExamples);
+			}
+			return nodeExamples;
+		}
+
+		// the strings of a repetition differ only in the substituted child, one string is built per child alternative
+		private void addRepetitionExamples(Node child, String pre, String post, Collection<Example> nodeExamples) {
+			Map<String,String> bases = new IdentityHashMap<String,String>();
+			for(Example example : this.getExampleSet(child)) {
+				String base = bases.get(example.base);
+				if(base == null) {
+					base = pre + example.base + post;
+					bases.put(example.base, base);
+				}
+				nodeExamples.add(example.shift(base, pre.length()));
+			}
+		}
+
+		private Collection<Example> computeExamples(Node node) {
+			Collection<Example> nodeExamples = new LinkedHashSet<Example>();
+			if(node instanceof RepetitionNode) {
+				RepetitionNode repNode = (RepetitionNode)node;
+				String start = repNode.start.getData().getExample();
+				String rep = repNode.rep.getData().getExample();
+				String end = repNode.end.getData().getExample();
+				this.addRepetitionExamples(repNode.start, "", rep + end, nodeExamples);
+				this.addRepetitionExamples(repNode.rep, start, end, nodeExamples);
+				this.addRepetitionExamples(repNode.end, start + rep, "", nodeExamples);
+			} else if(node instanceof MultiConstantNode) {
+				MultiConstantNode mconstNode = (MultiConstantNode)node;
+				String example = mconstNode.getData().getExample();
+				for(int i=0; i<mconstNode.characterChecks.size(); i++) {
+					CharacterSet checks = mconstNode.characterChecks.get(i);
+					for(int j=0; j<checks.size(); j++) {
+						nodeExamples.add(new Example(example, i, checks.get(j)));
+					}
+				}
+			} else if(node instanceof AlternationNode || node instanceof MultiAlternationNode) {
+				for(Node child : node.getChildren()) {
+					nodeExamples.addAll(this.getExampleSet(child));
+				}
+			} else if(node instanceof ConstantNode) {
+				nodeExamples.add(new Example(node.getData().getExample(), -1, '\0'));
+			} else {
+				throw new RuntimeException("Invalid node type: " + node.getClass().getName());
+			}
+			return nodeExamples;
+		}
+	}
 
 	private static boolean isMultiAlternationRepetitionConstant(Node node, boolean isParentRep) {
 		return GrammarSynthesis.getMultiAlternationRepetitionConstantChildren(node, isParentRep).hasT();
@@ -169,7 +417,7 @@ public class MergesSynthesis {
 				continue;
 			}
 			MultiConstantNode mconstNode = (MultiConstantNode)descendant;
-			for(Set<Character> checks : mconstNode.characterChecks) {
+			for(CharacterSet checks : mconstNode.characterChecks) {
 				if(checks.size() == 1) {
 					return true;
 				}
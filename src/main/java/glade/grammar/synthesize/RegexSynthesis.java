@@ -22,15 +22,131 @@ import glade.grammar.GrammarUtils.NodeData;
 import glade.grammar.GrammarUtils.RepetitionNode;
 import glade.util.CharacterUtils;
 import glade.util.Log;
+import glade.util.OracleUtils;
 import glade.util.OracleUtils.DiscriminativeOracle;
 import glade.util.Utils.Maybe;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
 
 public class RegexSynthesis {
+	private static ForkJoinPool pool = null;
+
+	// with more than one thread, independent subtrees are synthesized concurrently, the oracle must be thread safe
+	public static void setThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Invalid number of synthesis threads: " + threads);
+		}
+		if(pool != null) {
+			pool.shutdown();
+		}
+		pool = threads == 1 ? null : new ForkJoinPool(threads);
+	}
+
+	private static ExecutorService speculator = null;
+	private static int window = 1;
+
+	// with a window larger than one, that many upcoming split candidates are checked concurrently
+	public static void setSpeculation(int window) {
+		if(window < 1) {
+			throw new IllegalArgumentException("Invalid speculation window: " + window);
+		}
+		if(speculator != null) {
+			speculator.shutdown();
+		}
+		RegexSynthesis.window = window;
+		speculator = window == 1 ? null : Executors.newFixedThreadPool(window, OracleUtils.getDaemonThreadFactory("glade-speculate"));
+	}
+
+	// Returns the first candidate, in iteration order, that is accepted. Speculatively checked candidates
+	// after the first accepted one are discarded, so the result is the same as that of the sequential search.
+	private static <T> Maybe<T> findFirst(Iterator<T> candidates, final Predicate<T> isAccepted) {
+		if(speculator == null) {
+			while(candidates.hasNext()) {
+				T candidate = candidates.next();
+				if(isAccepted.test(candidate)) {
+					return new Maybe<T>(candidate);
+				}
+			}
+			return new Maybe<T>();
+		}
+		Deque<T> pending = new ArrayDeque<T>();
+		Deque<Future<Boolean>> checks = new ArrayDeque<Future<Boolean>>();
+		try {
+			while(true) {
+				while(checks.size() < window && candidates.hasNext()) {
+					final T candidate = candidates.next();
+					pending.add(candidate);
+					checks.add(speculator.submit(() -> isAccepted.test(candidate)));
+				}
+				if(checks.isEmpty()) {
+					return new Maybe<T>();
+				}
+				T candidate = pending.poll();
+				if(checks.poll().get()) {
+					return new Maybe<T>(candidate);
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while checking split candidates!", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new RuntimeException("Error checking split candidate!", e.getCause());
+		} finally {
+			// checks already running are left to finish, interrupting an oracle query can kill its worker
+			for(Future<Boolean> check : checks) {
+				check.cancel(false);
+			}
+		}
+	}
+
 	public static Node getNode(String example, DiscriminativeOracle oracle) {
-		return getNode(new NodeData(example, new Context()), oracle, new NodeType[]{NodeType.REPETITION, NodeType.ALTERNATION}, true);
+		NodeTask task = new NodeTask(new NodeData(example, new Context()), oracle, new NodeType[]{NodeType.REPETITION, NodeType.ALTERNATION}, true);
+		return pool == null ? task.invoke() : pool.invoke(task);
+	}
+
+	private static class NodeTask extends RecursiveTask<Node> {
+		private static final long serialVersionUID = -4316829171620381507L;
+		private final NodeData cur;
+		private final DiscriminativeOracle oracle;
+		private final NodeType[] types;
+		private final boolean isWholeStringRepeatable;
+		private NodeTask(NodeData cur, DiscriminativeOracle oracle, NodeType[] types, boolean isWholeStringRepeatable) {
+			this.cur = cur;
+			this.oracle = oracle;
+			this.types = types;
+			this.isWholeStringRepeatable = isWholeStringRepeatable;
+		}
+		@Override
+		protected Node compute() {
+			return getNode(this.cur, this.oracle, this.types, this.isWholeStringRepeatable);
+		}
+	}
+
+	// subtrees do not depend on each other, so the result is the same whether or not they run concurrently
+	private static void invokeAll(NodeTask ... tasks) {
+		if(ForkJoinTask.inForkJoinPool()) {
+			ForkJoinTask.invokeAll(tasks);
+		} else {
+			for(NodeTask task : tasks) {
+				task.invoke();
+			}
+		}
 	}
 
 	private static List<String> getAlternationChecks(String first, String second) {
@@ -73,40 +189,81 @@ public class RegexSynthesis {
 		}
 	}
 
-	private static Maybe<AlternationPartialNode> getAlternationPartialNode(NodeData cur, DiscriminativeOracle oracle) {
-		for(int i=1; i<=cur.example.length()-1; i++) {
-			String first = cur.example.substring(0, i);
-			String second = cur.example.substring(i);
-			if(GrammarSynthesis.getCheck(oracle, cur.context, getAlternationChecks(first, second))) {
-				NodeData firstData = new NodeData(first, new Context(cur.context, "", second, "", ""));
-				NodeData secondData = new NodeData(second, new Context(cur.context, first, "", "", ""));
-				Log.info("Alternation found: " + CharacterUtils.queryToAnsiString(first) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(second));
-				return new Maybe<AlternationPartialNode>(new AlternationPartialNode(firstData, secondData));
+	// split indices, in the order they are tried
+	private static Iterator<Integer> getAlternationSplits(final int length) {
+		return new Iterator<Integer>() {
+			private int i = 1;
+			@Override
+			public boolean hasNext() {
+				return this.i <= length-1;
 			}
-		}
-		return new Maybe<AlternationPartialNode>();
+			@Override
+			public Integer next() {
+				if(!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return this.i++;
+			}
+		};
 	}
 
-	private static Maybe<RepetitionPartialNode> getRepetitionPartialNode(NodeData cur, DiscriminativeOracle oracle, boolean isWholeStringRepeatable) {
-		for(int init=0; init<=cur.example.length()-1; init++) {
-			for(int len=cur.example.length()-init; len>=1; len--) {
-				if(len == cur.example.length() && !isWholeStringRepeatable) {
-					continue;
+	// (init, len) pairs, in the order they are tried
+	private static Iterator<int[]> getRepetitionSplits(final int length, boolean isWholeStringRepeatable) {
+		final int firstLen = isWholeStringRepeatable ? length : length-1;
+		return new Iterator<int[]>() {
+			private int init = 0;
+			private int len = firstLen;
+			@Override
+			public boolean hasNext() {
+				return this.init <= length-1 && this.len >= 1;
+			}
+			@Override
+			public int[] next() {
+				if(!this.hasNext()) {
+					throw new NoSuchElementException();
 				}
-				String start = cur.example.substring(0, init);
-				String rep = cur.example.substring(init, init+len);
-				String end = cur.example.substring(init+len);
-				if(GrammarSynthesis.getCheck(oracle, cur.context, getRepetitionChecks(start, rep, end))) {
-					NodeData startData = new NodeData(start, new Context(cur.context, "", rep+end, "", end));
-					NodeData repData = new NodeData(rep, new Context(cur.context, start, end, start, end));
-					NodeData endData = new NodeData(end, new Context(cur.context, start+rep, "", start, ""));
-					Log.info("Repetition found: " + CharacterUtils.queryToAnsiString(start) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(rep)
-                             + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(end));
-					return new Maybe<RepetitionPartialNode>(new RepetitionPartialNode(startData, repData, endData));
+				int[] split = {this.init, this.len};
+				if(--this.len < 1) {
+					this.init++;
+					this.len = length-this.init;
 				}
+				return split;
 			}
+		};
+	}
+
+	private static Maybe<AlternationPartialNode> getAlternationPartialNode(final NodeData cur, final DiscriminativeOracle oracle) {
+		Maybe<Integer> split = findFirst(getAlternationSplits(cur.getExample().length()), i -> GrammarSynthesis.getCheck(oracle, cur.getContext(), getAlternationChecks(cur.getExample().substring(0, i), cur.getExample().substring(i))));
+		if(!split.hasT()) {
+			return new Maybe<AlternationPartialNode>();
+		}
+		int i = split.getT();
+		int n = cur.getExample().length();
+		String first = cur.getExample().substring(0, i);
+		String second = cur.getExample().substring(i);
+		NodeData firstData = new NodeData(first, new Context(cur, 0, i, 0, n));
+		NodeData secondData = new NodeData(second, new Context(cur, i, n, 0, n));
+		Log.info("Alternation found: " + CharacterUtils.queryToAnsiString(first) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(second));
+		return new Maybe<AlternationPartialNode>(new AlternationPartialNode(firstData, secondData));
+	}
+
+	private static Maybe<RepetitionPartialNode> getRepetitionPartialNode(final NodeData cur, final DiscriminativeOracle oracle, boolean isWholeStringRepeatable) {
+		Maybe<int[]> split = findFirst(getRepetitionSplits(cur.getExample().length(), isWholeStringRepeatable), s -> GrammarSynthesis.getCheck(oracle, cur.getContext(), getRepetitionChecks(cur.getExample().substring(0, s[0]), cur.getExample().substring(s[0], s[0]+s[1]), cur.getExample().substring(s[0]+s[1]))));
+		if(!split.hasT()) {
+			return new Maybe<RepetitionPartialNode>();
 		}
-		return new Maybe<RepetitionPartialNode>();
+		int init = split.getT()[0];
+		int len = split.getT()[1];
+		int n = cur.getExample().length();
+		String start = cur.getExample().substring(0, init);
+		String rep = cur.getExample().substring(init, init+len);
+		String end = cur.getExample().substring(init+len);
+		NodeData startData = new NodeData(start, new Context(cur, 0, init, 0, init+len));
+		NodeData repData = new NodeData(rep, new Context(cur, init, init+len, init, init+len));
+		NodeData endData = new NodeData(end, new Context(cur, init+len, n, init, n));
+		Log.info("Repetition found: " + CharacterUtils.queryToAnsiString(start) + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(rep)
+                 + " @|fg(red) ||@ " + CharacterUtils.queryToAnsiString(end));
+		return new Maybe<RepetitionPartialNode>(new RepetitionPartialNode(startData, repData, endData));
 	}
 
 	private static Maybe<Node> getConstantNode(NodeData cur, DiscriminativeOracle oracle) {
@@ -118,9 +275,10 @@ public class RegexSynthesis {
 		if(!maybe.hasT()) {
 			return new Maybe<Node>();
 		}
-		Node first = getNode(maybe.getT().first, oracle, new NodeType[]{NodeType.REPETITION}, true);
-		Node second = getNode(maybe.getT().second, oracle, new NodeType[]{NodeType.ALTERNATION, NodeType.REPETITION}, true);
-		return new Maybe<Node>(new AlternationNode(cur, first, second));
+		NodeTask first = new NodeTask(maybe.getT().first, oracle, new NodeType[]{NodeType.REPETITION}, true);
+		NodeTask second = new NodeTask(maybe.getT().second, oracle, new NodeType[]{NodeType.ALTERNATION, NodeType.REPETITION}, true);
+		invokeAll(first, second);
+		return new Maybe<Node>(new AlternationNode(cur, first.join(), second.join()));
 	}
 
 	private static Maybe<Node> getRepetitionNode(NodeData cur, DiscriminativeOracle oracle, boolean isWholeStringRepeatable) {
@@ -128,10 +286,11 @@ public class RegexSynthesis {
 		if(!maybe.hasT()) {
 			return new Maybe<Node>();
 		}
-		Node start = getNode(maybe.getT().start, oracle, new NodeType[]{}, true);
-		Node rep = getNode(maybe.getT().rep, oracle, new NodeType[]{NodeType.ALTERNATION, NodeType.REPETITION}, false);
-		Node end = getNode(maybe.getT().end, oracle, new NodeType[]{NodeType.REPETITION}, true);
-		return new Maybe<Node>(new RepetitionNode(cur, start, rep, end));
+		NodeTask start = new NodeTask(maybe.getT().start, oracle, new NodeType[]{}, true);
+		NodeTask rep = new NodeTask(maybe.getT().rep, oracle, new NodeType[]{NodeType.ALTERNATION, NodeType.REPETITION}, false);
+		NodeTask end = new NodeTask(maybe.getT().end, oracle, new NodeType[]{NodeType.REPETITION}, true);
+		invokeAll(start, rep, end);
+		return new Maybe<Node>(new RepetitionNode(cur, start.join(), rep.join(), end.join()));
 	}
 
 	private static enum NodeType {
@@ -0,0 +1,245 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar.synthesize;
+
+import glade.util.Log;
+import glade.util.OracleUtils.DiscriminativeOracle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Shrinks a seed input with delta debugging (ddmin) while the oracle keeps accepting it. Coarse chunks
+// are tried first: blocks of lines with balanced braces, outermost blocks before the blocks nested in
+// them, then single lines, and finally single characters.
+public class SeedMinimizer {
+	private static interface Test {
+		public abstract boolean test(List<Integer> kept);
+	}
+
+	// ddmin over the items, returns a 1-minimal subset, in order, that passes the test
+	private static List<Integer> ddmin(List<Integer> items, Test test) {
+		int n = 2;
+		while(items.size() >= 2) {
+			List<List<Integer>> chunks = split(items, n);
+			boolean isReduced = false;
+			for(List<Integer> chunk : chunks) {
+				if(test.test(chunk)) {
+					items = chunk;
+					n = 2;
+					isReduced = true;
+					break;
+				}
+			}
+			if(!isReduced && n > 2) {
+				for(int i=0; i<chunks.size(); i++) {
+					List<Integer> complement = new ArrayList<Integer>();
+					for(int j=0; j<chunks.size(); j++) {
+						if(j != i) {
+							complement.addAll(chunks.get(j));
+						}
+					}
+					if(test.test(complement)) {
+						items = complement;
+						n = Math.max(n-1, 2);
+						isReduced = true;
+						break;
+					}
+				}
+			}
+			if(!isReduced) {
+				if(n >= items.size()) {
+					break;
+				}
+				n = Math.min(2*n, items.size());
+			}
+		}
+		return items;
+	}
+
+	private static List<List<Integer>> split(List<Integer> items, int n) {
+		List<List<Integer>> chunks = new ArrayList<List<Integer>>();
+		int start = 0;
+		for(int i=0; i<n; i++) {
+			int end = start + (items.size() - start)/(n - i);
+			chunks.add(new ArrayList<Integer>(items.subList(start, end)));
+			start = end;
+		}
+		return chunks;
+	}
+
+	// a line, or a block of lines from one that opens a brace to the one that closes it
+	private static class Unit {
+		private final int firstLine;
+		private final int lastLine;
+		private final List<Unit> children = new ArrayList<Unit>();
+		private Unit(int firstLine, int lastLine) {
+			this.firstLine = firstLine;
+			this.lastLine = lastLine;
+		}
+	}
+
+	private static List<String> getLines(String seed) {
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		for(int i=0; i<seed.length(); i++) {
+			if(seed.charAt(i) == '\n') {
+				lines.add(seed.substring(start, i+1));
+				start = i+1;
+			}
+		}
+		if(start < seed.length()) {
+			lines.add(seed.substring(start));
+		}
+		return lines;
+	}
+
+	// change in brace depth over the line, ignoring braces in quotes
+	private static int getDepthChange(String line) {
+		int change = 0;
+		boolean isQuoted = false;
+		for(int i=0; i<line.length(); i++) {
+			char c = line.charAt(i);
+			if(c == '"' && (i == 0 || line.charAt(i-1) != '\\')) {
+				isQuoted = !isQuoted;
+			} else if(!isQuoted && c == '{') {
+				change++;
+			} else if(!isQuoted && c == '}') {
+				change--;
+			}
+		}
+		return change;
+	}
+
+	// the units starting at the given line, until the enclosing block closes
+	private static List<Unit> getUnits(List<String> lines, int[] next) {
+		List<Unit> units = new ArrayList<Unit>();
+		while(next[0] < lines.size()) {
+			int line = next[0]++;
+			int change = getDepthChange(lines.get(line));
+			if(change < 0) {
+				// closes the enclosing block, which owns this line
+				next[0]--;
+				break;
+			} else if(change == 0) {
+				units.add(new Unit(line, line));
+			} else {
+				List<Unit> children = getUnits(lines, next);
+				int lastLine = next[0] < lines.size() ? next[0]++ : lines.size()-1;
+				Unit unit = new Unit(line, lastLine);
+				unit.children.addAll(children);
+				units.add(unit);
+			}
+		}
+		return units;
+	}
+
+	private static class LineMinimizer {
+		private final List<String> lines;
+		private final boolean[] isRemoved;
+		private final DiscriminativeOracle oracle;
+		private LineMinimizer(List<String> lines, DiscriminativeOracle oracle) {
+			this.lines = lines;
+			this.isRemoved = new boolean[lines.size()];
+			this.oracle = oracle;
+		}
+		private void setRemoved(Unit unit, boolean isRemoved) {
+			for(int i=unit.firstLine; i<=unit.lastLine; i++) {
+				this.isRemoved[i] = isRemoved;
+			}
+		}
+		private String getSeed() {
+			StringBuilder sb = new StringBuilder();
+			for(int i=0; i<this.lines.size(); i++) {
+				if(!this.isRemoved[i]) {
+					sb.append(this.lines.get(i));
+				}
+			}
+			return sb.toString();
+		}
+		// hierarchical delta debugging: minimizes the siblings, then the children of the remaining ones
+		private void minimize(final List<Unit> units) {
+			if(units.isEmpty()) {
+				return;
+			}
+			List<Integer> indices = new ArrayList<Integer>();
+			for(int i=0; i<units.size(); i++) {
+				indices.add(i);
+			}
+			List<Integer> kept = ddmin(indices, cur -> {
+				for(int i=0; i<units.size(); i++) {
+					this.setRemoved(units.get(i), !cur.contains(i));
+				}
+				boolean isValid = query(this.oracle, this.getSeed());
+				for(Unit unit : units) {
+					this.setRemoved(unit, false);
+				}
+				return isValid;
+			});
+			for(int i=0; i<units.size(); i++) {
+				this.setRemoved(units.get(i), !kept.contains(i));
+			}
+			for(int i : kept) {
+				this.minimize(units.get(i).children);
+			}
+		}
+	}
+
+	private static boolean query(DiscriminativeOracle oracle, String query) {
+		try {
+			return oracle.query(query);
+		} catch(IOException e) {
+			throw new RuntimeException("Error querying oracle!", e);
+		}
+	}
+
+	private static String minimizeLines(String seed, DiscriminativeOracle oracle) {
+		List<String> lines = getLines(seed);
+		List<Unit> units = getUnits(lines, new int[]{0});
+		LineMinimizer minimizer = new LineMinimizer(lines, oracle);
+		// stray closing braces end the top level early, the rest of the lines are kept as they are
+		minimizer.minimize(units);
+		return minimizer.getSeed();
+	}
+
+	private static String minimizeCharacters(final String seed, final DiscriminativeOracle oracle) {
+		List<Integer> indices = new ArrayList<Integer>();
+		for(int i=0; i<seed.length(); i++) {
+			indices.add(i);
+		}
+		List<Integer> kept = ddmin(indices, cur -> query(oracle, getSubsequence(seed, cur)));
+		return getSubsequence(seed, kept);
+	}
+
+	private static String getSubsequence(String seed, List<Integer> indices) {
+		StringBuilder sb = new StringBuilder();
+		for(int i : indices) {
+			sb.append(seed.charAt(i));
+		}
+		return sb.toString();
+	}
+
+	public static String minimize(String seed, DiscriminativeOracle oracle) {
+		if(!query(oracle, seed)) {
+			throw new IllegalArgumentException("Seed input has been rejected by oracle: " + seed);
+		}
+		long time = System.currentTimeMillis();
+		String lineSeed = minimizeLines(seed, oracle);
+		String minSeed = minimizeCharacters(lineSeed, oracle);
+		Log.info("Minimized seed input from " + seed.length() + " to " + lineSeed.length() + " (lines) and " + minSeed.length() + " (characters) characters in "
+				+ ((System.currentTimeMillis() - time)/1000.0) + " seconds");
+		return minSeed;
+	}
+}
@@ -0,0 +1,232 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar.synthesize;
+
+import glade.grammar.GrammarSerializer;
+import glade.grammar.GrammarUtils;
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.GrammarUtils.Node;
+import glade.grammar.GrammarUtils.NodeMerges;
+import glade.util.Log;
+import glade.util.OracleUtils.QueryHash;
+import glade.util.Utils;
+import glade.util.Utils.Maybe;
+import glade.util.VerdictStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Synthesis state kept in a directory, so that an interrupted run can be resumed:
+//
+//   root<i>.gram   the finished (regex and generalized) root of seed i, written atomically
+//   merges.log     an append-only log of the merges found for each finished pair of roots
+//
+// Work in progress is not stored. Instead all oracle verdicts are journaled in a verdict store, so
+// redoing an unfinished root or pair replays the recorded verdicts and never queries the oracle twice.
+public class SynthesisCheckpoint implements Closeable {
+	private static final String MERGES_FILENAME = "merges.log";
+
+	private final Path directory;
+	private final List<String> seeds;
+	private final VerdictStore journal;
+	private final Map<Long,int[]> mergeRecords = new HashMap<Long,int[]>();
+	private final DataOutputStream mergesLog;
+	private final FileOutputStream mergesFile;
+	private List<Node> allNodes = null;
+	private Map<Node,Integer> nodeIds = null;
+
+	// the journal may be null if verdicts are not persisted, in which case resuming repeats oracle work
+	public SynthesisCheckpoint(Path directory, List<String> seeds, VerdictStore journal) throws IOException {
+		this.directory = directory;
+		this.seeds = seeds;
+		this.journal = journal;
+		Files.createDirectories(directory);
+		Path mergesPath = directory.resolve(MERGES_FILENAME);
+		long validLength = this.readMergesLog(mergesPath);
+		try(FileChannel channel = FileChannel.open(mergesPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			// drops a record torn by a kill
+			channel.truncate(validLength);
+		}
+		this.mergesFile = new FileOutputStream(mergesPath.toFile(), true);
+		this.mergesLog = new DataOutputStream(new BufferedOutputStream(this.mergesFile));
+		if(validLength == 0) {
+			QueryHash seedsHash = getSeedsHash(seeds);
+			this.mergesLog.writeLong(seedsHash.high);
+			this.mergesLog.writeLong(seedsHash.low);
+			this.sync();
+		}
+	}
+
+	public static Path getJournalPath(Path directory) {
+		return directory.resolve("verdicts.store");
+	}
+
+	private Path getRootPath(int index) {
+		return this.directory.resolve("root" + index + ".gram");
+	}
+
+	private static QueryHash getSeedsHash(List<String> seeds) {
+		StringBuilder sb = new StringBuilder();
+		for(String seed : seeds) {
+			sb.append(seed.length()).append(':').append(seed);
+		}
+		return QueryHash.of(sb.toString());
+	}
+
+	private static long getPairKey(int first, int second) {
+		return ((long)first << 32) | (second & 0xffffffffL);
+	}
+
+	// returns the length of the valid prefix of the log, merges of a different seed list are discarded
+	private long readMergesLog(Path mergesPath) throws IOException {
+		if(!Files.exists(mergesPath)) {
+			return 0;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(mergesPath));
+		long validLength = 0;
+		try {
+			QueryHash seedsHash = getSeedsHash(this.seeds);
+			if(buffer.getLong() != seedsHash.high || buffer.getLong() != seedsHash.low) {
+				Log.info("Discarding merges checkpoint of different seed inputs");
+				return 0;
+			}
+			validLength = buffer.position();
+			while(buffer.hasRemaining()) {
+				int first = buffer.getInt();
+				int second = buffer.getInt();
+				int[] record = new int[2*buffer.getInt()];
+				for(int i=0; i<record.length; i++) {
+					record[i] = buffer.getInt();
+				}
+				this.mergeRecords.put(getPairKey(first, second), record);
+				validLength = buffer.position();
+			}
+		} catch(BufferUnderflowException e) {
+			Log.debug("Dropping torn merges checkpoint record");
+		}
+		return validLength;
+	}
+
+	private void sync() throws IOException {
+		this.mergesLog.flush();
+		this.mergesFile.getChannel().force(false);
+		if(this.journal != null) {
+			this.journal.flush();
+		}
+	}
+
+	public Maybe<Node> getRoot(int index) {
+		Path path = this.getRootPath(index);
+		if(!Files.exists(path)) {
+			return new Maybe<Node>();
+		}
+		try(DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if(!this.seeds.get(index).equals(GrammarSerializer.deserializeString(dis))) {
+				Log.info("Discarding checkpoint of root " + index + " for a different seed input");
+				return new Maybe<Node>();
+			}
+			return new Maybe<Node>(GrammarSerializer.deserializeNodeWithMerges(dis).node);
+		} catch(EOFException e) {
+			Log.info("Discarding incomplete checkpoint of root " + index);
+			return new Maybe<Node>();
+		} catch(IOException e) {
+			throw new RuntimeException("Error reading checkpoint: " + path, e);
+		}
+	}
+
+	public void putRoot(int index, Node root) {
+		Path path = this.getRootPath(index);
+		Path temporaryPath = this.directory.resolve(path.getFileName() + ".tmp");
+		try {
+			if(this.journal != null) {
+				this.journal.flush();
+			}
+			try(FileOutputStream fos = new FileOutputStream(temporaryPath.toFile())) {
+				DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+				GrammarSerializer.serialize(this.seeds.get(index), dos);
+				GrammarSerializer.serialize(new Grammar(root, new NodeMerges()), dos);
+				dos.flush();
+				fos.getChannel().force(false);
+			}
+			Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			throw new RuntimeException("Error writing checkpoint: " + path, e);
+		}
+	}
+
+	// merges are recorded by node index over all roots, so the roots must not change after this call
+	public void setRoots(List<Node> roots) {
+		this.allNodes = new ArrayList<Node>();
+		for(Node root : roots) {
+			this.allNodes.addAll(GrammarUtils.getAllNodes(root));
+		}
+		this.nodeIds = Utils.getInverse(this.allNodes);
+	}
+
+	public Maybe<NodeMerges> getMerges(int first, int second) {
+		int[] record = this.mergeRecords.get(getPairKey(first, second));
+		if(record == null) {
+			return new Maybe<NodeMerges>();
+		}
+		NodeMerges merges = new NodeMerges();
+		for(int i=0; i<record.length; i+=2) {
+			merges.add(this.allNodes.get(record[i]), this.allNodes.get(record[i+1]));
+		}
+		return new Maybe<NodeMerges>(merges);
+	}
+
+	public void putMerges(int first, int second, NodeMerges merges) {
+		List<Integer> record = new ArrayList<Integer>();
+		for(int i=0; i<merges.size(); i++) {
+			for(int j=0; j<merges.getNumMerges(i); j++) {
+				record.add(this.nodeIds.get(merges.getNode(i)));
+				record.add(this.nodeIds.get(merges.getNode(merges.getMerge(i, j))));
+			}
+		}
+		try {
+			this.mergesLog.writeInt(first);
+			this.mergesLog.writeInt(second);
+			this.mergesLog.writeInt(record.size()/2);
+			for(int id : record) {
+				this.mergesLog.writeInt(id);
+			}
+			this.sync();
+		} catch(IOException e) {
+			throw new RuntimeException("Error writing merges checkpoint!", e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.mergesLog.close();
+	}
+}
@@ -18,15 +18,21 @@ import glade.grammar.GrammarSerializer;
 import glade.grammar.GrammarUtils.Grammar;
 import glade.grammar.GrammarUtils.Node;
 import glade.grammar.synthesize.GrammarSynthesis;
+import glade.grammar.synthesize.GrammarTransformer;
 import glade.main.ProgramDataUtils.ProgramData;
 import glade.main.ProgramDataUtils.ProgramExamples;
 
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -49,25 +55,37 @@ public class GrammarDataUtils {
 	}
 	
 	public static void saveGrammar(String filename, Grammar grammar) {
+		saveGrammar(filename, grammar, false);
+	}
+	
+	// without contexts, the grammar can be fuzzed and printed but not extended
+	public static void saveGrammar(String filename, Grammar grammar, boolean stripContexts) {
+		File file = new File(filename);
+		File parent = file.getParentFile();
+		if(parent != null) {
+			parent.mkdirs();
+		}
+		// a loaded grammar is decoded from its file while it is saved, so the file is only replaced once the new one is complete
+		Path path = file.toPath();
+		Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
 		try {
-			File file = new File(filename);
-			File parent = file.getParentFile();
-			if(parent != null) {
-				parent.mkdirs();
+			try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryPath.toFile())))) {
+				GrammarSerializer.serialize(GrammarTransformer.getSimplifiedGrammar(grammar, stripContexts), stripContexts, dos);
 			}
-			DataOutputStream dos = new DataOutputStream(new FileOutputStream(filename));
-			GrammarSerializer.serialize(grammar, dos);
+			Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 		} catch(IOException e) {
 			throw new RuntimeException("Error opening file during grammar save: " + filename, e);
 		} catch(RuntimeException e) {
 			throw new RuntimeException(e.getMessage() + "\nError serializing grammar: " + filename, e);
+		} finally {
+			temporaryPath.toFile().delete();
 		}
 	}
 	
 	public static Grammar loadGrammar(String filename) {
-		try {
-			DataInputStream dis = new DataInputStream(new FileInputStream(filename));
-			return GrammarSerializer.deserializeNodeWithMerges(dis);
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			// the mapping outlives the channel, examples and contexts are decoded from it when accessed
+			return GrammarSerializer.deserializeNodeWithMerges(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
 		} catch(IOException e) {
 			throw new RuntimeException("Error opening grammar file during grammar load: " + filename, e);
 		} catch(RuntimeException e) {
@@ -17,11 +17,28 @@ package glade.main;
 
 import glade.grammar.fuzz.GrammarFuzzer.GrammarMutationSampler;
 import glade.grammar.fuzz.GrammarFuzzer.SampleParameters;
+import glade.grammar.GrammarParser;
+import glade.grammar.GrammarSerializer;
 import glade.grammar.GrammarUtils.Grammar;
 import glade.grammar.synthesize.GrammarSynthesis;
+import glade.grammar.synthesize.MergesSynthesis;
+import glade.grammar.synthesize.RegexSynthesis;
+import glade.grammar.synthesize.SeedMinimizer;
+import glade.grammar.synthesize.SynthesisCheckpoint;
 import glade.util.CharacterUtils;
 import glade.util.Log;
+import glade.util.OracleUtils.CachedDiscriminativeOracle;
 import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.OracleUtils.ParallelDiscriminativeOracle;
+import glade.util.OracleUtils.PersistentDiscriminativeOracle;
+import glade.util.OracleUtils.QueryHash;
+import glade.util.OracleUtils.TolerantDiscriminativeOracle;
+import glade.util.OraclePool;
+import glade.util.ShellUtils;
+import glade.util.ShellUtils.PersistentProcessBackendFactory;
+import glade.util.VerdictStore;
+import glade.main.SimulinkUtils.EngineType;
+import glade.main.SimulinkUtils.SimulinkBackendFactory;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -31,6 +48,7 @@ import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
@@ -39,18 +57,18 @@ import java.util.stream.Stream;
 
 import javax.xml.parsers.SAXParserFactory;
 import org.xml.sax.InputSource;
-import com.mathworks.engine.*;
 
 import glade.util.Utils;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Parameters;
 import picocli.CommandLine.ParentCommand;
 
 
 @Command(name = "glade", mixinStandardHelpOptions = true, version = "1.0",
-    subcommands = {Learn.class, Fuzz.class, Print.class})
+    subcommands = {Learn.class, Fuzz.class, Minimize.class, Print.class})
 public class Main implements Callable<Integer> {
 
     @Option(names = {"--log"}, description = "logging level")
@@ -120,6 +138,15 @@ public class Main implements Callable<Integer> {
         }
         throw new IllegalArgumentException("\"allowedLength\" contains more than one dash.");
     }
+
+    static DiscriminativeOracle withVerdictStore(DiscriminativeOracle oracle, VerdictStore store) {
+        return store == null ? oracle : new PersistentDiscriminativeOracle(oracle, store);
+    }
+
+    // with several workers, batches of checks are spread over the pool
+    static DiscriminativeOracle withParallelism(DiscriminativeOracle oracle, int workers) {
+        return workers == 1 ? oracle : new ParallelDiscriminativeOracle(oracle, workers);
+    }
 }
 
 @Command(name = "learn", description = "Learn grammar")
@@ -145,15 +172,94 @@ class Learn implements Callable<Integer> {
     @Option(names = {"-a", "--alphabet"}, defaultValue = "ASCII", description = "input alphabet")
     private CharacterUtils.InputAlphabet inputAlphabet;
 
+    @Option(names = {"--generalization"}, defaultValue = "FLAT",
+        description = "character generalization: FLAT probes every character, HIERARCHICAL probes character classes first")
+    private CharacterUtils.Generalization generalization;
+
+    @Option(names = {"--reuse-generalizations"}, defaultValue = "-1",
+        description = "reuse the generalization of a constant seen before in the same place after this many spot checks, -1 to disable")
+    private int reuseGeneralizations;
+
+    @Option(names = {"--oracle-cache-memory"}, defaultValue = "64",
+        description = "memory budget of the oracle query cache in megabytes")
+    private long oracleCacheMemory;
+
+    @Mixin
+    private OracleOptions oracleOptions;
+
+    @Option(names = {"-t", "--threads"}, defaultValue = "1",
+        description = "number of threads synthesizing independent subexpressions")
+    private int threads;
+
+    @Option(names = {"--seed-threads"}, defaultValue = "1", description = "number of seed inputs learned concurrently")
+    private int seedThreads;
+
+    @Option(names = {"--merge-threads"}, defaultValue = "1", description = "number of candidate merges checked concurrently")
+    private int mergeThreads;
+
+    @Option(names = {"--speculation"}, defaultValue = "1",
+        description = "number of split candidates checked ahead in parallel, 1 to check one at a time")
+    private int speculation;
+
+    @Option(names = {"--minimize"}, description = "shrink every seed input with delta debugging before learning")
+    private boolean minimize;
+
+    @Option(names = {"--checkpoint"}, description = "directory storing synthesis state, so that learning can be resumed")
+    private Path checkpoint;
+
+    @Option(names = {"--resume"}, description = "checkpoint directory of an interrupted run to continue")
+    private Path resume;
+
+    @Option(names = {"--base"}, description = "grammar file to extend with the seed inputs it does not accept yet")
+    private String baseFile;
+
+    @Option(names = {"--strip-contexts"},
+        description = "save the grammar without contexts, enough to fuzz and print it but not to extend it with --base")
+    private boolean stripContexts;
+
     @Override
-    public Integer call() throws EngineException, IllegalArgumentException, IllegalStateException, InterruptedException {
+    public Integer call() throws IOException {
         parent.initGlade();
         Log.debug("Starting subcommand learn");
+        CharacterUtils.setGeneralization(generalization);
         CharacterUtils.init(inputAlphabet);
+        RegexSynthesis.setThreads(threads);
+        RegexSynthesis.setSpeculation(speculation);
+        GrammarSynthesis.setSeedThreads(seedThreads);
+        MergesSynthesis.setMergeThreads(mergeThreads);
+        GrammarSynthesis.setGeneralizationReuse(reuseGeneralizations);
         int[] allowedLength = Main.parseAllowedLength(this.allowedLength);
         List<String> seedInputs = new ArrayList<>();
+        Path checkpointDir = resume != null ? resume : checkpoint;
+        if (baseFile != null && checkpointDir != null) {
+            // checkpointed merges refer to the nodes of all roots, which are not tied to a particular base grammar
+            System.err.println("Error: --base cannot be combined with --checkpoint or --resume");
+            return new CommandLine(this).getCommandSpec().exitCodeOnInvalidInput();
+        }
+        if (resume != null && !Files.isDirectory(resume)) {
+            System.err.println("Error: no checkpoint to resume from in " + resume);
+            return new CommandLine(this).getCommandSpec().exitCodeOnInvalidInput();
+        }
+        if (resume == null && checkpoint != null && Files.isDirectory(checkpoint)) {
+            try (Stream<Path> entries = Files.list(checkpoint)) {
+                if (entries.findAny().isPresent()) {
+                    System.err.println("Error: checkpoint directory is not empty, use --resume to continue: " + checkpoint);
+                    return new CommandLine(this).getCommandSpec().exitCodeOnInvalidInput();
+                }
+            }
+        }
+        if (checkpointDir != null && oracleOptions.oracleCache == null) {
+            // the journaled verdicts let a resumed run replay unfinished work without querying the oracle
+            Files.createDirectories(checkpointDir);
+            oracleOptions.oracleCache = SynthesisCheckpoint.getJournalPath(checkpointDir);
+        }
         Log.debug("Creating oracle");
-        DiscriminativeOracle oracle = new Oracle(command, allowedLength);
+        VerdictStore store = oracleOptions.openVerdictStore(command, allowedLength);
+        OraclePool pool = oracleOptions.createOraclePool(command);
+        CachedDiscriminativeOracle cachedOracle = new CachedDiscriminativeOracle(
+            Main.withVerdictStore(new Oracle(allowedLength, pool), store), oracleCacheMemory * 1024 * 1024);
+        DiscriminativeOracle oracle = new TolerantDiscriminativeOracle(
+            Main.withParallelism(cachedOracle, oracleOptions.workers));
         try (Stream<Path> walk = Files.walk(inputFolder)) {
             walk.filter(Files::isRegularFile).forEach(p -> {
                 try {
@@ -176,14 +282,58 @@ class Learn implements Callable<Integer> {
             System.err.println("Error: input folder is empty");
             return new CommandLine(this).getCommandSpec().exitCodeOnInvalidInput();
         }
-        Log.info("Learning grammar");
-        Grammar grammar = GrammarSynthesis.getGrammarMultiple(seedInputs, oracle);
+        Grammar baseGrammar = null;
+        if (baseFile != null) {
+            Log.info("Loading base grammar from " + baseFile);
+            baseGrammar = GrammarDataUtils.loadGrammar(baseFile);
+            if (GrammarSerializer.isStripped(baseGrammar)) {
+                System.err.println("Error: base grammar has been saved without contexts: " + baseFile);
+                return new CommandLine(this).getCommandSpec().exitCodeOnInvalidInput();
+            }
+            GrammarParser parser = GrammarParser.get(baseGrammar);
+            int numSeedInputs = seedInputs.size();
+            seedInputs.removeIf(parser::recognize);
+            Log.info("Skipping " + (numSeedInputs - seedInputs.size()) + " seed input(s) accepted by base grammar");
+        }
+        if (minimize) {
+            for (int i = 0; i < seedInputs.size(); i++) {
+                seedInputs.set(i, SeedMinimizer.minimize(seedInputs.get(i), oracle));
+                Log.info("Minimized seed input: " + CharacterUtils.queryToAnsiString(seedInputs.get(i)));
+            }
+        }
+        SynthesisCheckpoint synthesisCheckpoint = null;
+        if (checkpointDir != null) {
+            Log.info((resume != null ? "Resuming from" : "Checkpointing to") + " " + checkpointDir);
+            synthesisCheckpoint = new SynthesisCheckpoint(checkpointDir, seedInputs, store);
+        }
+        Grammar grammar;
+        if (baseGrammar == null) {
+            Log.info("Learning grammar");
+            grammar = GrammarSynthesis.getGrammarMultiple(seedInputs, oracle, synthesisCheckpoint);
+        } else if (seedInputs.isEmpty()) {
+            Log.info("Base grammar accepts all seed inputs");
+            grammar = baseGrammar;
+        } else {
+            Log.info("Extending base grammar with " + seedInputs.size() + " seed input(s)");
+            grammar = GrammarSynthesis.getGrammarIncremental(baseGrammar, seedInputs, oracle);
+        }
+        if (synthesisCheckpoint != null) {
+            synthesisCheckpoint.close();
+        }
         if(outputFile == null) {
             outputFile = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH:mm").format(LocalDateTime.now()) + ".gram";
         }
         
         Log.info("Saving grammar to " + outputFile);
-        GrammarDataUtils.saveGrammar(outputFile, grammar);
+        GrammarDataUtils.saveGrammar(outputFile, grammar, stripContexts);
+        Log.info("Oracle cache: " + cachedOracle.getHits() + " hits, " + cachedOracle.getMisses() + " misses");
+        Log.info("Oracle workers respawned: " + pool.getRespawns());
+        Log.info("Oracle timeouts: " + pool.getTimeouts() + " workers, " + ShellUtils.getTimeouts() + " processes");
+        if (store != null) {
+            Log.info("Oracle verdict store contains " + store.size() + " verdicts");
+            store.close();
+        }
+        pool.close();
         return 0;
     }
 }
@@ -219,6 +369,9 @@ class Fuzz implements Callable<Integer> {
     @Option(names = {"-r", "--recursion"}, defaultValue = "0.2", description = "probability of using recursive production")
     private double recursionProbability;
 
+    @Mixin
+    private OracleOptions oracleOptions;
+
     @Override
     public Integer call() throws Exception { // TODO add support for combined fuzzer
         parent.initGlade();
@@ -226,7 +379,10 @@ class Fuzz implements Callable<Integer> {
         int[] allowedLength = Main.parseAllowedLength(this.allowedLength);
 
         Log.debug("Creating oracle");
-        DiscriminativeOracle oracle = new Oracle(command, allowedLength);
+        VerdictStore store = oracleOptions.openVerdictStore(command, allowedLength);
+        OraclePool pool = oracleOptions.createOraclePool(command);
+        DiscriminativeOracle oracle = new TolerantDiscriminativeOracle(
+            Main.withVerdictStore(new Oracle(allowedLength, pool), store));
 
         Log.info("Loading grammar from " + input);
         Grammar grammar = GrammarDataUtils.loadGrammar(input);
@@ -268,6 +424,69 @@ class Fuzz implements Callable<Integer> {
             }
         }
         System.out.println("Pass rate: " + (float) pass / count);
+        if (store != null) {
+            store.close();
+        }
+        pool.close();
+        return 0;
+    }
+}
+
+@Command(name = "minimize", description = "Shrink seed inputs")
+class Minimize implements Callable<Integer> {
+
+    @ParentCommand
+    private Main parent;
+
+    @Parameters(description = "oracle command, as for learn")
+    private String command;
+
+    @Option(names = {"-i", "--input"}, defaultValue = "inputs", description = "folder with seed inputs")
+    private Path inputFolder;
+
+    @Option(names = {"-o", "--output"}, defaultValue = "minimized", description = "folder for the minimized seed inputs")
+    private Path outputFolder;
+
+    @Option(names = {"-l", "--length"}, description = "allowed length of an input")
+    private String allowedLength;
+
+    @Option(names = {"-a", "--alphabet"}, defaultValue = "ASCII", description = "input alphabet")
+    private CharacterUtils.InputAlphabet inputAlphabet;
+
+    @Mixin
+    private OracleOptions oracleOptions;
+
+    @Override
+    public Integer call() throws IOException {
+        parent.initGlade();
+        Log.debug("Starting subcommand minimize");
+        CharacterUtils.init(inputAlphabet);
+        int[] allowedLength = Main.parseAllowedLength(this.allowedLength);
+
+        Log.debug("Creating oracle");
+        VerdictStore store = oracleOptions.openVerdictStore(command, allowedLength);
+        OraclePool pool = oracleOptions.createOraclePool(command);
+        DiscriminativeOracle oracle = new TolerantDiscriminativeOracle(
+            Main.withVerdictStore(new Oracle(allowedLength, pool), store));
+
+        List<Path> seedFiles;
+        try (Stream<Path> walk = Files.walk(inputFolder)) {
+            seedFiles = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path seedFile : seedFiles) {
+            Log.info("Minimizing seed input " + seedFile);
+            String seed = new String(Files.readAllBytes(seedFile), StandardCharsets.ISO_8859_1);
+            String minSeed = SeedMinimizer.minimize(seed, oracle);
+            Path outputFile = outputFolder.resolve(inputFolder.relativize(seedFile));
+            if (outputFile.getParent() != null) {
+                Files.createDirectories(outputFile.getParent());
+            }
+            Files.write(outputFile, minSeed.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        if (store != null) {
+            store.close();
+        }
+        pool.close();
         return 0;
     }
 }
@@ -291,31 +510,66 @@ class Print implements Callable<Integer> {
     }
 }
 
-class Oracle implements DiscriminativeOracle {
-    private String command;
-    private int[] allowedLength;
-    private Path tempFile;
-    public Writer fileWriter;
-    MatlabEngine eng;
-    
-    Oracle(String command, int[] allowedLength) throws EngineException, IllegalArgumentException, IllegalStateException, InterruptedException {
-        
-        
-        eng = MatlabEngine.startMatlab();
-        this.command = command;
-        this.allowedLength = allowedLength;
-        if (command.contains("{/}")) {
-            try {
-                this.tempFile = Files.createTempFile("glade", ".tmp").toAbsolutePath();
-                Log.debug("Temporary file for oracle created: " + tempFile.toString());
-            } catch (IOException e) {
-                throw new RuntimeException("Cannot create a temporary file for oracle.");
-            }
+// oracle options shared by the subcommands that query the oracle
+class OracleOptions {
+
+    @Option(names = {"--oracle-cache"}, description = "file storing oracle verdicts across runs")
+    Path oracleCache;
+
+    @Option(names = {"-w", "--workers"}, defaultValue = "1", description = "number of parallel oracle workers")
+    int workers;
+
+    @Option(names = {"-e", "--engine"}, defaultValue = "MATLAB", description = "engine used by oracle workers")
+    EngineType engine;
+
+    @Option(names = {"--oracle-timeout"}, defaultValue = "-1",
+        description = "milliseconds before a hung oracle worker is restarted, -1 for no timeout")
+    long oracleTimeout;
+
+    @Option(names = {"--persistent"}, description = "keep the oracle command running and send it framed queries")
+    boolean persistent;
+
+    @Option(names = {"--restart-after"}, defaultValue = "0",
+        description = "restart a persistent oracle after this many queries, 0 for never")
+    int restartAfter;
+
+    VerdictStore openVerdictStore(String command, int[] allowedLength) throws IOException {
+        if (oracleCache == null) {
+            return null;
+        }
+        Log.info("Using oracle verdict store " + oracleCache);
+        String backend = persistent ? "PERSISTENT" : engine.toString();
+        VerdictStore store = new VerdictStore(oracleCache,
+            QueryHash.of(backend + "\0" + command + "\0" + Arrays.toString(allowedLength)));
+        Log.info("Oracle verdict store contains " + store.size() + " verdicts");
+        return store;
+    }
+
+    OraclePool createOraclePool(String command) throws IOException {
+        if (persistent) {
+            Log.info("Starting " + workers + " persistent oracle process(es): " + command);
+            // the process oracle enforces the timeout itself and restarts the process on the next query
+            return new OraclePool(new PersistentProcessBackendFactory(command, restartAfter, oracleTimeout), workers, -1);
+        }
+        if (command != null && !command.isEmpty()) {
+            Log.error("Ignoring oracle command without --persistent, queries are checked by the " + engine + " engine: "
+                + command);
         }
+        Log.info("Starting " + workers + " oracle worker(s) using " + engine + " engine");
+        return new OraclePool(new SimulinkBackendFactory(engine), workers, oracleTimeout);
     }
+}
+
+class Oracle implements DiscriminativeOracle {
+    private final int[] allowedLength;
+    private final DiscriminativeOracle backend;
 
-    public boolean query(String query) throws IOException { // TODO add timeout (use Future)
+    Oracle(int[] allowedLength, DiscriminativeOracle backend) {
+        this.allowedLength = allowedLength;
+        this.backend = backend;
+    }
 
+    public boolean query(String query) throws IOException {
         Log.debug("Oracle input: " + CharacterUtils.queryToAnsiString(query));
         if (allowedLength.length == 1 && query.length() != allowedLength[0]) {
             Log.debug("Oracle @|red failed|@ because the query length is not equal to " + allowedLength[0] + ".");
@@ -326,63 +580,6 @@ class Oracle implements DiscriminativeOracle {
                 + "-" + allowedLength[1] + ".");
             return false;
         }
-        try(FileWriter fw = new FileWriter("current_input.mdl", false)){
-            
-            fw.write(query);
-            
-        }
-        try {
-            
-            // SAXParserFactory.newInstance().newSAXParser().getXMLReader().parse(new InputSource(new StringReader(query)));
-            this.eng.eval("load_system('current_input')");
-            // Log.info("Successfully Loaded");
-            // this.eng.eval("current_input([], [], [], 'compile')");
-            // this.eng.eval("current_input([], [], [], 'term')");
-            // Log.info("Successfully compiled");
-            // Log.info("Successfully closed");
-            String md = eng.feval("bdroot");
-            
-            eng.feval(0,"slreportgen.utils.compileModel", md);
-            eng.feval(0,"slreportgen.utils.uncompileModel", md);
-            this.eng.eval("close_system('current_input')");
-
-            return true;
-            // Process p;
-            // if (command.contains("{}")) {
-                //     if (query.contains("\0")) { // Command arguments can't contain null bytes.
-                //         Log.debug("Oracle @|red failed|@ because the query contains a null byte.");
-            //         return false;
-            //     }
-            //     p = Runtime.getRuntime().exec(command.replace("{}", query));
-            // } else if (command.contains("{/}")) {
-                //     FileOutputStream out = new FileOutputStream(tempFile.toFile(), false);
-                //     for (char c : query.toCharArray()) {
-            //         out.write(c);
-            //     }
-            //     out.close();
-            //     p = Runtime.getRuntime().exec(command.replace("{/}", tempFile.toString()));
-            // } else {
-                //     p = Runtime.getRuntime().exec(command);
-            //     for (char c : query.toCharArray()) {
-                //         p.getOutputStream().write(c);
-                //     }
-                //     p.getOutputStream().close();
-                // }
-                
-                // Log.debug("Oracle STDOUT: " + new BufferedReader(new InputStreamReader(p.getInputStream()))
-                //     .lines().collect(Collectors.joining("\n")));
-                // Log.debug("Oracle STDERR: " + new BufferedReader(new InputStreamReader(p.getErrorStream()))
-                //     .lines().collect(Collectors.joining("\n")));
-                
-                // p.waitFor();
-                
-                // Log.debug("Oracle exit value: " + (p.exitValue() == 0 ? "@|green " : "@|red ") + p.exitValue() + "|@");
-                // return p.exitValue() == 0;
-            } catch (Exception e) {
-                // throw new IllegalStateException(e);
-                // Log.info("Error in parsing");
-                return false;
-            }
-            
-        }
+        return backend.query(query);
+    }
 }
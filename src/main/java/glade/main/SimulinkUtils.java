@@ -0,0 +1,171 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.main;
+
+import glade.util.Log;
+import glade.util.OraclePool.Backend;
+import glade.util.OraclePool.BackendFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.mathworks.engine.EngineException;
+import com.mathworks.engine.MatlabEngine;
+import com.mathworks.engine.MatlabExecutionException;
+import com.mathworks.engine.MatlabSyntaxException;
+
+public class SimulinkUtils {
+	public static interface SimulinkEngine {
+		// returns normally if the model loads and compiles, throws InvalidModelException if it does not
+		public abstract void check(String modelName) throws InvalidModelException, IOException;
+		public abstract void close();
+	}
+
+	public static class InvalidModelException extends Exception {
+		private static final long serialVersionUID = 2407961262539117094L;
+		public InvalidModelException(Throwable cause) {
+			super(cause);
+		}
+		public InvalidModelException(String message) {
+			super(message);
+		}
+	}
+
+	public static enum EngineType {
+		MATLAB, STUB;
+	}
+
+	public static SimulinkEngine getEngine(EngineType type) throws IOException {
+		switch(type) {
+		case MATLAB:
+			return new MatlabSimulinkEngine();
+		case STUB:
+			return new StubSimulinkEngine();
+		default:
+			throw new IllegalArgumentException("Unsupported engine: " + type);
+		}
+	}
+
+	public static class MatlabSimulinkEngine implements SimulinkEngine {
+		private final MatlabEngine engine;
+		public MatlabSimulinkEngine() throws IOException {
+			try {
+				this.engine = MatlabEngine.startMatlab();
+			} catch(EngineException | InterruptedException e) {
+				throw new IOException("Error starting MATLAB engine!", e);
+			}
+		}
+		@Override
+		public void check(String modelName) throws InvalidModelException, IOException {
+			try {
+				try {
+					this.engine.eval("load_system('" + modelName + "')");
+					String root = this.engine.feval("bdroot");
+					this.engine.feval(0, "slreportgen.utils.compileModel", root);
+					this.engine.feval(0, "slreportgen.utils.uncompileModel", root);
+				} finally {
+					// a model left loaded would shadow the next query written under the same name
+					this.engine.eval("if bdIsLoaded('" + modelName + "'), close_system('" + modelName + "', 0); end");
+				}
+			} catch(MatlabExecutionException | MatlabSyntaxException e) {
+				throw new InvalidModelException(e);
+			} catch(Exception e) {
+				throw new IOException("Error evaluating model in MATLAB engine!", e);
+			}
+		}
+		@Override
+		public void close() {
+			try {
+				this.engine.close();
+			} catch(EngineException e) {
+				Log.error("Error closing MATLAB engine: " + e.getMessage());
+			}
+		}
+	}
+
+	// stand-in for MATLAB when testing locally, accepts models with balanced braces and quotes
+	public static class StubSimulinkEngine implements SimulinkEngine {
+		@Override
+		public void check(String modelName) throws InvalidModelException, IOException {
+			String model = new String(Files.readAllBytes(new File(modelName + ".mdl").toPath()), StandardCharsets.ISO_8859_1);
+			int depth = 0;
+			boolean isQuoted = false;
+			for(int i=0; i<model.length(); i++) {
+				char c = model.charAt(i);
+				if(c == '"' && (i == 0 || model.charAt(i-1) != '\\')) {
+					isQuoted = !isQuoted;
+				} else if(!isQuoted && c == '{') {
+					depth++;
+				} else if(!isQuoted && c == '}' && --depth < 0) {
+					throw new InvalidModelException("Unbalanced braces");
+				}
+			}
+			if(depth != 0 || isQuoted) {
+				throw new InvalidModelException("Unbalanced braces or quotes");
+			}
+		}
+		@Override
+		public void close() {}
+	}
+
+	public static class SimulinkBackend implements Backend {
+		private final SimulinkEngine engine;
+		private final String modelName;
+		private boolean isHealthy = true;
+		public SimulinkBackend(SimulinkEngine engine, String modelName) {
+			this.engine = engine;
+			this.modelName = modelName;
+		}
+		@Override
+		public boolean query(String query) throws IOException {
+			try(FileWriter fw = new FileWriter(this.modelName + ".mdl", false)) {
+				fw.write(query);
+			}
+			try {
+				this.engine.check(this.modelName);
+				return true;
+			} catch(InvalidModelException e) {
+				return false;
+			} catch(IOException e) {
+				this.isHealthy = false;
+				throw e;
+			}
+		}
+		@Override
+		public boolean isHealthy() {
+			return this.isHealthy;
+		}
+		@Override
+		public void close() {
+			this.engine.close();
+			new File(this.modelName + ".mdl").delete();
+		}
+	}
+
+	// every worker gets its own engine and its own model file and name in the working directory
+	public static class SimulinkBackendFactory implements BackendFactory {
+		private final EngineType engineType;
+		public SimulinkBackendFactory(EngineType engineType) {
+			this.engineType = engineType;
+		}
+		@Override
+		public Backend create(int index) throws IOException {
+			return new SimulinkBackend(getEngine(this.engineType), "glade_worker" + index);
+		}
+	}
+}
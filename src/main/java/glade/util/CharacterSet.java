@@ -0,0 +1,153 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.util;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// An immutable set of characters, iterated in insertion order. Membership is a bitset lookup and the i-th
+// character is an array access, so neither boxes nor allocates.
+public class CharacterSet extends AbstractSet<Character> {
+	private final long[] bits;
+	private final char[] characters;
+	private final int hashCode;
+
+	public CharacterSet(Collection<Character> characters) {
+		this(toArray(characters));
+	}
+
+	public CharacterSet(char[] characters) {
+		int max = -1;
+		for(char c : characters) {
+			max = Math.max(max, c);
+		}
+		this.bits = new long[max == -1 ? 0 : (max >>> 6) + 1];
+		char[] dense = new char[characters.length];
+		int size = 0;
+		int hashCode = 0;
+		for(char c : characters) {
+			if(!this.contains(c)) {
+				this.bits[c >>> 6] |= 1L << c;
+				dense[size++] = c;
+				hashCode += c;
+			}
+		}
+		this.characters = size == dense.length ? dense : Arrays.copyOf(dense, size);
+		this.hashCode = hashCode;
+	}
+
+	private static char[] toArray(Collection<Character> characters) {
+		char[] array = new char[characters.size()];
+		int i = 0;
+		for(char c : characters) {
+			array[i++] = c;
+		}
+		return array;
+	}
+
+	public boolean contains(char c) {
+		int word = c >>> 6;
+		return word < this.bits.length && (this.bits[word] & (1L << c)) != 0;
+	}
+
+	// in insertion order
+	public char get(int index) {
+		return this.characters[index];
+	}
+
+	// the smallest character at least from, -1 if there is none
+	public int nextCharacter(int from) {
+		int word = from >>> 6;
+		if(word >= this.bits.length) {
+			return -1;
+		}
+		long cur = this.bits[word] & (-1L << from);
+		while(cur == 0) {
+			if(++word == this.bits.length) {
+				return -1;
+			}
+			cur = this.bits[word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(cur);
+	}
+
+	// the largest character, -1 if the set is empty
+	public int lastCharacter() {
+		for(int word=this.bits.length-1; word>=0; word--) {
+			if(this.bits[word] != 0) {
+				return (word << 6) + 63 - Long.numberOfLeadingZeros(this.bits[word]);
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Character && this.contains(((Character)o).charValue());
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		if(!(c instanceof CharacterSet)) {
+			return super.containsAll(c);
+		}
+		long[] otherBits = ((CharacterSet)c).bits;
+		for(int i=0; i<otherBits.length; i++) {
+			if((otherBits[i] & ~(i < this.bits.length ? this.bits[i] : 0L)) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return this.characters.length;
+	}
+
+	@Override
+	public Iterator<Character> iterator() {
+		return new Iterator<Character>() {
+			private int index = 0;
+			@Override
+			public boolean hasNext() {
+				return this.index < CharacterSet.this.characters.length;
+			}
+			@Override
+			public Character next() {
+				if(!this.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return CharacterSet.this.characters[this.index++];
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if(other instanceof CharacterSet) {
+			return Arrays.equals(this.bits, ((CharacterSet)other).bits);
+		}
+		return super.equals(other);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hashCode;
+	}
+}
@@ -22,37 +22,136 @@ public class CharacterUtils {
 		public final Set<Character> triggers;
 		public final List<Character> characters;
 		public final List<Character> checks;
+		// finer generalizations tried when the checks of this one fail
+		public final List<CharacterGeneralization> children;
 		public CharacterGeneralization(Collection<Character> triggers, Collection<Character> characters, Collection<Character> checks) {
+			this(triggers, characters, checks, Collections.<CharacterGeneralization>emptyList());
+		}
+		public CharacterGeneralization(Collection<Character> triggers, Collection<Character> characters, Collection<Character> checks, List<CharacterGeneralization> children) {
 			this.triggers = new HashSet<>(triggers);
 			this.characters = new ArrayList<>(characters);
 			this.checks = new ArrayList<>(checks);
+			this.children = Collections.unmodifiableList(new ArrayList<>(children));
 		}
 	}
 
     private static InputAlphabet inputAlphabet;
     private static List<CharacterGeneralization> generalizations;
+    private static Generalization generalization = Generalization.FLAT;
     private static boolean isInitialized = false;
 
-    // TODO add here logic for ASCII from old GLADE implementation
     public static void init(InputAlphabet inputAlphabet) {
         if (isInitialized) {
+            // loading several grammars of the same alphabet is fine
+            if (inputAlphabet == CharacterUtils.inputAlphabet) {
+                return;
+            }
             throw new IllegalStateException("\"CharacterUtils\" are already initialized.");
         }
         isInitialized = true;
 
         CharacterUtils.inputAlphabet = inputAlphabet;
+        initGeneralizations();
+    }
 
-        List<CharacterGeneralization> generalizations = new ArrayList<>();
-        List<Character> allCharacters = new ArrayList<>();
+    // may be called before or after init
+    public static void setGeneralization(Generalization generalization) {
+        CharacterUtils.generalization = generalization;
+        if (isInitialized) {
+            initGeneralizations();
+        }
+    }
 
+    private static void initGeneralizations() {
+        List<Character> allCharacters = new ArrayList<>();
         for (char c = 0; c < getNumberOfCharacters(); c++) {
             allCharacters.add(c);
         }
-        for (char c : allCharacters) {
+        switch (generalization) {
+            case FLAT:
+                generalizations = Collections.unmodifiableList(getSingletonGeneralizations(allCharacters, allCharacters));
+                break;
+            case HIERARCHICAL:
+                generalizations = Collections.unmodifiableList(getHierarchicalGeneralizations(allCharacters));
+                break;
+            default:
+                throw new IllegalStateException("Unsupported generalization: " + generalization);
+        }
+    }
+
+    private static List<CharacterGeneralization> getSingletonGeneralizations(List<Character> allCharacters, List<Character> characters) {
+        List<CharacterGeneralization> generalizations = new ArrayList<>();
+        for (char c : characters) {
             List<Character> curC = Utils.getList(c);
             generalizations.add(new CharacterGeneralization(allCharacters, curC, curC));
         }
-        CharacterUtils.generalizations = Collections.unmodifiableList(generalizations);
+        return generalizations;
+    }
+
+    private static CharacterGeneralization getClassGeneralization(List<Character> allCharacters, List<Character> characters, String checks, List<CharacterGeneralization> children) {
+        List<Character> checkCharacters = new ArrayList<>();
+        for (char c : checks.toCharArray()) {
+            checkCharacters.add(c);
+        }
+        return new CharacterGeneralization(allCharacters, characters, checkCharacters, children);
+    }
+
+    // a class of characters whose only subclasses are its single characters
+    private static CharacterGeneralization getClassGeneralization(List<Character> allCharacters, List<Character> characters, String checks) {
+        return getClassGeneralization(allCharacters, characters, checks, getSingletonGeneralizations(allCharacters, characters));
+    }
+
+    // Character classes, each probed with a few representative checks. A class that passes contributes all its
+    // characters, one that fails is refined into its subclasses, down to single characters.
+    private static List<CharacterGeneralization> getHierarchicalGeneralizations(List<Character> allCharacters) {
+        List<Character> lower = new ArrayList<>();
+        List<Character> upper = new ArrayList<>();
+        List<Character> digits = new ArrayList<>();
+        List<Character> quotes = new ArrayList<>();
+        List<Character> brackets = new ArrayList<>();
+        List<Character> symbols = new ArrayList<>();
+        List<Character> whitespace = new ArrayList<>();
+        List<Character> other = new ArrayList<>();
+        for (char c : allCharacters) {
+            if (c >= 'a' && c <= 'z') {
+                lower.add(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                upper.add(c);
+            } else if (c >= '0' && c <= '9') {
+                digits.add(c);
+            } else if (c == '"' || c == '\'' || c == '`') {
+                quotes.add(c);
+            } else if ("()<>[]{}".indexOf(c) != -1) {
+                brackets.add(c);
+            } else if (c > ' ' && c < 127) {
+                symbols.add(c);
+            } else if (c == ' ' || (c >= '\t' && c <= '\r')) {
+                whitespace.add(c);
+            } else {
+                other.add(c);
+            }
+        }
+        List<Character> letters = new ArrayList<>(lower);
+        letters.addAll(upper);
+        List<Character> alnum = new ArrayList<>(letters);
+        alnum.addAll(digits);
+        List<Character> punctuation = new ArrayList<>(quotes);
+        punctuation.addAll(brackets);
+        punctuation.addAll(symbols);
+        CharacterGeneralization lettersGeneralization = getClassGeneralization(allCharacters, letters, "cK", Utils.getList(
+            getClassGeneralization(allCharacters, lower, "amz"),
+            getClassGeneralization(allCharacters, upper, "AMZ")));
+        CharacterGeneralization alnumGeneralization = getClassGeneralization(allCharacters, alnum, "bN4", Utils.getList(
+            lettersGeneralization,
+            getClassGeneralization(allCharacters, digits, "059")));
+        return Utils.getList(getClassGeneralization(allCharacters, allCharacters, "\"'()<>[]{}aQ7 %\u0001", Utils.getList(
+            alnumGeneralization,
+            getClassGeneralization(allCharacters, punctuation, "\"'()<>[]{}!,;~", Utils.getList(
+                getClassGeneralization(allCharacters, quotes, "\"'`"),
+                getClassGeneralization(allCharacters, brackets, "()<>[]{}"),
+                getClassGeneralization(allCharacters, symbols, "!-.:_~"))),
+            getClassGeneralization(allCharacters, whitespace, " \t\n"),
+            getClassGeneralization(allCharacters, other, "\u0000\u0007\u007f"))));
     }
 
 	public static List<CharacterGeneralization> getGeneralizations() {
@@ -99,6 +198,10 @@ public class CharacterUtils {
         return inputAlphabet;
     }
 
+    public enum Generalization {
+        FLAT, HIERARCHICAL
+    }
+
     public enum InputAlphabet {
         ASCII(128), BYTE(256);
         public final int numberOfCharacters;
@@ -62,7 +62,7 @@ public class Log {
 	    writeLog(Level.DEBUG, message);
     }
 
-    private static void writeLog(Level level, String message) {
+    private static synchronized void writeLog(Level level, String message) {
         if (loggingLevel.ordinal() >= level.ordinal()) {
             try {
                 outputStream.write(ansi.string(
@@ -0,0 +1,204 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.util;
+
+import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.OracleUtils.UnknownVerdictException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Owns a fixed number of independent oracle backends. A query checks a backend out, runs on the
+// backend's own thread and returns the backend to the pool. Backends that time out, throw or report
+// themselves unhealthy are closed and replaced by a fresh backend with the same index.
+public class OraclePool implements DiscriminativeOracle, Closeable {
+	public static interface Backend {
+		public abstract boolean query(String query) throws IOException;
+		public abstract boolean isHealthy();
+		public abstract void close();
+	}
+
+	public static interface BackendFactory {
+		// backends with different indices must not share any scratch state
+		public abstract Backend create(int index) throws IOException;
+	}
+
+	private static class Worker {
+		private final int index;
+		private final Backend backend;
+		private final ExecutorService thread;
+		private Worker(int index, Backend backend) {
+			this.index = index;
+			this.backend = backend;
+			this.thread = Executors.newSingleThreadExecutor(OracleUtils.getDaemonThreadFactory("glade-worker-" + index));
+		}
+	}
+
+	private final BackendFactory factory;
+	private final long timeoutMillis;
+	private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private int numLive;
+	private long numRespawns = 0;
+	private long numTimeouts = 0;
+
+	// timeoutMillis == -1 disables the per-query timeout
+	public OraclePool(BackendFactory factory, int size, long timeoutMillis) throws IOException {
+		if(size < 1) {
+			throw new IllegalArgumentException("Oracle pool needs at least one worker.");
+		}
+		this.factory = factory;
+		this.timeoutMillis = timeoutMillis;
+		for(int i=0; i<size; i++) {
+			Worker worker = this.spawn(i);
+			this.workers.add(worker);
+			this.idle.add(worker);
+		}
+		this.numLive = size;
+	}
+
+	public int size() {
+		return this.workers.size();
+	}
+
+	private Worker spawn(int index) throws IOException {
+		Log.debug("Starting oracle worker " + index);
+		return new Worker(index, this.factory.create(index));
+	}
+
+	private static void retire(final Worker worker) {
+		worker.thread.shutdownNow();
+		// closing a hung backend may itself hang, so never close on the caller's thread
+		Thread closer = new Thread(() -> worker.backend.close(), "glade-worker-close-" + worker.index);
+		closer.setDaemon(true);
+		closer.start();
+	}
+
+	private Worker respawn(Worker worker) throws IOException {
+		retire(worker);
+		synchronized(this) {
+			this.numRespawns++;
+			this.numLive--;
+		}
+		Worker newWorker = this.spawn(worker.index);
+		synchronized(this) {
+			this.workers.set(worker.index, newWorker);
+			this.numLive++;
+		}
+		return newWorker;
+	}
+
+	private Worker checkout() throws IOException {
+		try {
+			while(true) {
+				Worker worker = this.idle.poll(1, TimeUnit.SECONDS);
+				if(worker != null) {
+					if(!worker.backend.isHealthy()) {
+						Log.info("Oracle worker " + worker.index + " is unhealthy, respawning");
+						try {
+							worker = this.respawn(worker);
+						} catch(IOException e) {
+							throw new IOException("Error respawning oracle worker " + worker.index, e);
+						}
+					}
+					return worker;
+				}
+				synchronized(this) {
+					if(this.numLive == 0) {
+						throw new IOException("No oracle workers left!");
+					}
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for an oracle worker!", e);
+		}
+	}
+
+	@Override
+	public boolean query(final String query) throws IOException {
+		Worker worker = this.checkout();
+		try {
+			final Backend backend = worker.backend;
+			Future<Boolean> future = worker.thread.submit(() -> backend.query(query));
+			try {
+				return this.timeoutMillis == -1 ? future.get() : future.get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch(TimeoutException e) {
+				// only a hung backend is killed, retiring the worker interrupts its thread
+				synchronized(this) {
+					this.numTimeouts++;
+				}
+				Log.info("Oracle worker " + worker.index + " timed out, respawning");
+				worker = this.respawn(worker);
+				throw new UnknownVerdictException("Oracle worker timed out on query");
+			} catch(ExecutionException e) {
+				if(e.getCause() instanceof UnknownVerdictException) {
+					// the backend recovered by itself
+					throw (UnknownVerdictException)e.getCause();
+				}
+				Log.info("Oracle worker " + worker.index + " failed, respawning");
+				worker = this.respawn(worker);
+				if(e.getCause() instanceof IOException) {
+					throw (IOException)e.getCause();
+				}
+				throw new RuntimeException("Error querying oracle worker!", e.getCause());
+			} catch(InterruptedException e) {
+				// the backend is left alone and returns to the pool once its query is done
+				final Worker busyWorker = worker;
+				worker.thread.execute(() -> this.idle.add(busyWorker));
+				worker = null;
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while querying oracle worker!", e);
+			}
+		} catch(IOException | RuntimeException e) {
+			if(worker != null && worker.thread.isShutdown()) {
+				// respawn failed, the worker is gone for good
+				worker = null;
+			}
+			throw e;
+		} finally {
+			if(worker != null) {
+				this.idle.add(worker);
+			}
+		}
+	}
+
+	public synchronized long getRespawns() {
+		return this.numRespawns;
+	}
+
+	public synchronized long getTimeouts() {
+		return this.numTimeouts;
+	}
+
+	@Override
+	public synchronized void close() {
+		for(Worker worker : this.workers) {
+			worker.thread.shutdownNow();
+			worker.backend.close();
+		}
+		this.idle.clear();
+	}
+}
@@ -14,9 +14,22 @@
 
 package glade.util;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class OracleUtils {
 	public interface Oracle {
@@ -27,6 +40,54 @@ public class OracleUtils {
 		// public FileWriter fileWriter = new FileWriter("current_input.txt",false)
 		// public void tempFile() throws Exception;
 		public abstract boolean query(String query) throws IOException;
+
+		// true if all queries are valid, stops at the first invalid query
+		public default boolean queryAll(Iterable<String> queries) throws IOException {
+			for(String query : queries) {
+				if(!this.query(query)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	// the oracle could not decide the query, e.g. because it crashed or timed out
+	public static class UnknownVerdictException extends IOException {
+		private static final long serialVersionUID = 6213896354871452207L;
+		public UnknownVerdictException(String message) {
+			super(message);
+		}
+	}
+
+	// Counts queries the oracle could not decide as invalid. It must wrap any cache or verdict store,
+	// which then never see these queries, so that they are asked again instead of being rejected for good.
+	public static class TolerantDiscriminativeOracle implements DiscriminativeOracle {
+		private final DiscriminativeOracle oracle;
+
+		public TolerantDiscriminativeOracle(DiscriminativeOracle oracle) {
+			this.oracle = oracle;
+		}
+
+		@Override
+		public boolean query(String query) throws IOException {
+			try {
+				return this.oracle.query(query);
+			} catch(UnknownVerdictException e) {
+				Log.debug(e.getMessage());
+				return false;
+			}
+		}
+
+		@Override
+		public boolean queryAll(Iterable<String> queries) throws IOException {
+			try {
+				return this.oracle.queryAll(queries);
+			} catch(UnknownVerdictException e) {
+				Log.debug(e.getMessage());
+				return false;
+			}
+		}
 	}
 	
 	public static interface Wrapper {
@@ -69,4 +130,199 @@ public class OracleUtils {
                 return this.oracle.query(this.wrapper.wrap(query));
         }
     }
+
+	public static final class QueryHash {
+		private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+			@Override
+			protected MessageDigest initialValue() {
+				try {
+					return MessageDigest.getInstance("SHA-256");
+				} catch(NoSuchAlgorithmException e) {
+					throw new RuntimeException("SHA-256 is not available!", e);
+				}
+			}
+		};
+
+		public final long high;
+		public final long low;
+
+		public QueryHash(long high, long low) {
+			this.high = high;
+			this.low = low;
+		}
+
+		// first 128 bits of the SHA-256 digest of the query
+		public static QueryHash of(String query) {
+			byte[] bytes = digest.get().digest(query.getBytes(StandardCharsets.UTF_8));
+			long high = 0;
+			long low = 0;
+			for(int i=0; i<8; i++) {
+				high = (high << 8) | (bytes[i] & 0xff);
+				low = (low << 8) | (bytes[i+8] & 0xff);
+			}
+			return new QueryHash(high, low);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if(!(other instanceof QueryHash)) {
+				return false;
+			}
+			QueryHash otherHash = (QueryHash)other;
+			return this.high == otherHash.high && this.low == otherHash.low;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)this.low;
+		}
+	}
+
+	public static class CachedDiscriminativeOracle implements DiscriminativeOracle {
+		// rough footprint of one cached verdict: hash object, map entry and table slot
+		private static final long ESTIMATED_ENTRY_BYTES = 96;
+
+		private final DiscriminativeOracle oracle;
+		private final Map<QueryHash,Boolean> cache;
+		private long hits = 0;
+		private long misses = 0;
+
+		public CachedDiscriminativeOracle(DiscriminativeOracle oracle, long memoryBudgetBytes) {
+			final long maxEntries = Math.max(1, memoryBudgetBytes / ESTIMATED_ENTRY_BYTES);
+			this.oracle = oracle;
+			this.cache = new LinkedHashMap<QueryHash,Boolean>(16, 0.75f, true) {
+				private static final long serialVersionUID = 4316930184457092261L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<QueryHash,Boolean> eldest) {
+					return this.size() > maxEntries;
+				}
+			};
+		}
+
+		@Override
+		public boolean query(String query) throws IOException {
+			QueryHash hash = QueryHash.of(query);
+			synchronized(this) {
+				Boolean verdict = this.cache.get(hash);
+				if(verdict != null) {
+					this.hits++;
+					return verdict;
+				}
+				this.misses++;
+			}
+			boolean verdict = this.oracle.query(query);
+			synchronized(this) {
+				this.cache.put(hash, verdict);
+			}
+			return verdict;
+		}
+
+		public synchronized long getHits() {
+			return this.hits;
+		}
+
+		public synchronized long getMisses() {
+			return this.misses;
+		}
+
+		public synchronized int size() {
+			return this.cache.size();
+		}
+	}
+
+	public static class PersistentDiscriminativeOracle implements DiscriminativeOracle {
+		private final DiscriminativeOracle oracle;
+		private final VerdictStore store;
+
+		public PersistentDiscriminativeOracle(DiscriminativeOracle oracle, VerdictStore store) {
+			this.oracle = oracle;
+			this.store = store;
+		}
+
+		@Override
+		public boolean query(String query) throws IOException {
+			QueryHash hash = QueryHash.of(query);
+			Boolean verdict = this.store.get(hash);
+			if(verdict != null) {
+				return verdict;
+			}
+			boolean newVerdict = this.oracle.query(query);
+			this.store.put(hash, newVerdict);
+			return newVerdict;
+		}
+	}
+
+	public static ThreadFactory getDaemonThreadFactory(final String name) {
+		final AtomicInteger counter = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	// evaluates batches concurrently, the underlying oracle must be thread safe
+	public static class ParallelDiscriminativeOracle implements DiscriminativeOracle {
+		private final DiscriminativeOracle oracle;
+		private final ExecutorService executor;
+
+		public ParallelDiscriminativeOracle(DiscriminativeOracle oracle, ExecutorService executor) {
+			this.oracle = oracle;
+			this.executor = executor;
+		}
+
+		public ParallelDiscriminativeOracle(DiscriminativeOracle oracle, int numThreads) {
+			this(oracle, Executors.newFixedThreadPool(numThreads, getDaemonThreadFactory("glade-oracle")));
+		}
+
+		@Override
+		public boolean query(String query) throws IOException {
+			return this.oracle.query(query);
+		}
+
+		@Override
+		public boolean queryAll(Iterable<String> queries) throws IOException {
+			List<String> queryList = new ArrayList<String>();
+			for(String query : queries) {
+				queryList.add(query);
+			}
+			if(queryList.size() <= 1) {
+				return this.oracle.queryAll(queryList);
+			}
+			CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(this.executor);
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			try {
+				for(final String query : queryList) {
+					futures.add(completion.submit(() -> this.oracle.query(query)));
+				}
+				for(int i=0; i<queryList.size(); i++) {
+					if(!completion.take().get()) {
+						return false;
+					}
+				}
+				return true;
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while querying oracle!", e);
+			} catch(ExecutionException e) {
+				if(e.getCause() instanceof IOException) {
+					throw (IOException)e.getCause();
+				}
+				throw new RuntimeException("Error querying oracle!", e.getCause());
+			} finally {
+				// running queries are not interrupted, their verdicts are simply dropped
+				for(Future<Boolean> future : futures) {
+					future.cancel(false);
+				}
+			}
+		}
+
+		public void shutdown() {
+			this.executor.shutdownNow();
+		}
+	}
 }
@@ -16,20 +16,37 @@ package glade.util;
 
 import glade.util.OracleUtils.DiscriminativeOracle;
 import glade.util.OracleUtils.Oracle;
+import glade.util.OracleUtils.UnknownVerdictException;
+import glade.util.OraclePool.Backend;
+import glade.util.OraclePool.BackendFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.concurrent.Callable;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 public class ShellUtils {
+	private static final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(OracleUtils.getDaemonThreadFactory("glade-timeout"));
+	private static final ExecutorService streamDrainer = Executors.newCachedThreadPool(OracleUtils.getDaemonThreadFactory("glade-drain"));
+	private static final AtomicLong numTimeouts = new AtomicLong();
+
 	public static void delete(String filename) {
 		new File(filename).delete();
 	}
@@ -75,41 +92,89 @@ public class ShellUtils {
 
 	public static String executeForStream(final String command, final boolean isError, long timeoutMillis) {
 		final Process process = executeNoWait(command);
-		Callable<String> exec = new Callable<String>() {
-			public String call() {
-				String result = read(isError ? process.getErrorStream() : process.getInputStream());
-				try {
-					process.waitFor();
-				} catch (InterruptedException e) {
-					throw new RuntimeException("Error executing command: " + command, e);
-				}
-				return result;
-			}
-		};
-		if(timeoutMillis == -1) {
-			try {
-				return exec.call();
-			} catch (Exception e) {
-				throw new RuntimeException("Error executing command: " + command, e);
+		Deadline deadline = watch(process, timeoutMillis);
+		try {
+			process.getOutputStream().close();
+			// drain the other stream concurrently, so a child blocked on a full pipe cannot deadlock us
+			final InputStream other = isError ? process.getInputStream() : process.getErrorStream();
+			Future<String> otherResult = streamDrainer.submit(() -> read(other));
+			String result = read(isError ? process.getErrorStream() : process.getInputStream());
+			otherResult.get();
+			process.waitFor();
+			return deadline.isExpired() ? "Timeout!" : result;
+		} catch(IOException | RuntimeException | ExecutionException e) {
+			// killing the process tree may close the streams under the readers
+			if(deadline.isExpired()) {
+				return "Timeout!";
 			}
-		} else {
-			final ExecutorService executor = Executors.newSingleThreadExecutor();
-			final Future<String> future = executor.submit(exec);
-			executor.shutdown();
-			String result;
+			throw new RuntimeException("Error executing command: " + command, e);
+		} catch(InterruptedException e) {
+			destroyTree(process);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while executing command: " + command, e);
+		} finally {
+			deadline.cancel();
+		}
+	}
+
+	// Process.descendants() only exists on Java 9 and later, on Java 8 only the shell itself is killed
+	private static final Method descendantsMethod = getMethod("java.lang.Process", "descendants");
+	private static final Method destroyHandleMethod = getMethod("java.lang.ProcessHandle", "destroyForcibly");
+
+	private static Method getMethod(String className, String methodName) {
+		try {
+			return Class.forName(className).getMethod(methodName);
+		} catch(ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	// kills the children before the shell, once the shell is gone its children can no longer be found
+	public static void destroyTree(Process process) {
+		if(descendantsMethod != null && destroyHandleMethod != null) {
 			try {
-				result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
-			} catch(Exception e) {
-				process.destroy();
-				result = "Timeout!";
+				for(Object handle : ((Stream<?>)descendantsMethod.invoke(process)).toArray()) {
+					destroyHandleMethod.invoke(handle);
+				}
+			} catch(ReflectiveOperationException e) {
+				Log.debug("Error killing oracle process tree: " + e.getMessage());
 			}
-			if(!executor.isTerminated()) {
-			    executor.shutdownNow();
+		}
+		process.destroyForcibly();
+	}
+
+	// A deadline on the shared timeout scheduler, when it passes the process tree is killed.
+	private static class Deadline {
+		private volatile boolean isExpired = false;
+		private ScheduledFuture<?> kill = null;
+		private boolean isExpired() {
+			return this.isExpired;
+		}
+		private void cancel() {
+			if(this.kill != null) {
+				this.kill.cancel(false);
 			}
-			return result;
 		}
 	}
 
+	// timeoutMillis == -1 never expires
+	private static Deadline watch(final Process process, long timeoutMillis) {
+		final Deadline deadline = new Deadline();
+		if(timeoutMillis != -1) {
+			deadline.kill = timeoutScheduler.schedule(() -> {
+				deadline.isExpired = true;
+				numTimeouts.incrementAndGet();
+				destroyTree(process);
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		return deadline;
+	}
+
+	// number of oracle processes killed by their deadline, including persistent ones
+	public static long getTimeouts() {
+		return numTimeouts.get();
+	}
+
 	public static interface CommandFactory {
 		public abstract String getCommand(String filename, String auxFilename, String exePath);
 	}
@@ -159,4 +224,132 @@ public class ShellUtils {
 			return this.oracle.execute(query).matches("\\s*");
 		}
 	}
+
+	// Long-lived oracle process, started once instead of once per query. Each query is written to the
+	// process's stdin as a 4 byte big-endian length followed by the query bytes (ISO-8859-1), and the
+	// process answers on stdout with a single byte: 1 if the query is valid, 0 if it is not.
+	public static class PersistentProcessOracle implements DiscriminativeOracle, Closeable {
+		private final String command;
+		private final int restartAfter;
+		private final long timeoutMillis;
+		private Process process;
+		private DataOutputStream stdin;
+		private InputStream stdout;
+		private int numQueries;
+		private long numStarts = 0;
+		private long numTimeouts = 0;
+
+		// restartAfter == 0 never restarts a working process, timeoutMillis == -1 disables the timeout
+		public PersistentProcessOracle(String command, int restartAfter, long timeoutMillis) {
+			this.command = command;
+			this.restartAfter = restartAfter;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		private void start() throws IOException {
+			this.stop();
+			Log.debug("Starting oracle process: " + this.command);
+			this.process = new ProcessBuilder("/bin/sh", "-c", this.command)
+				.redirectError(ProcessBuilder.Redirect.to(new File("/dev/null")))
+				.start();
+			this.stdin = new DataOutputStream(new BufferedOutputStream(this.process.getOutputStream()));
+			this.stdout = new BufferedInputStream(this.process.getInputStream());
+			this.numQueries = 0;
+			this.numStarts++;
+		}
+
+		private void stop() {
+			if(this.process != null) {
+				destroyTree(this.process);
+				this.process = null;
+			}
+		}
+
+		// null if the process crashed or answered something other than a verdict, it is restarted on the next call
+		private Boolean ask(String query) throws IOException {
+			if(this.process == null || !this.process.isAlive() || (this.restartAfter > 0 && this.numQueries >= this.restartAfter)) {
+				this.start();
+			}
+			this.numQueries++;
+			Deadline deadline = watch(this.process, this.timeoutMillis);
+			try {
+				byte[] bytes = query.getBytes(StandardCharsets.ISO_8859_1);
+				this.stdin.writeInt(bytes.length);
+				this.stdin.write(bytes);
+				this.stdin.flush();
+				int verdict = this.stdout.read();
+				if(verdict == 0 || verdict == 1) {
+					return verdict == 1;
+				}
+				throw new IOException(verdict == -1 ? "Oracle process exited: " + this.command : "Invalid verdict from oracle process: " + verdict);
+			} catch(IOException e) {
+				this.stop();
+				if(deadline.isExpired()) {
+					this.numTimeouts++;
+					throw new UnknownVerdictException("Oracle process timed out: " + this.command);
+				}
+				Log.debug(e.getMessage());
+				return null;
+			} finally {
+				deadline.cancel();
+			}
+		}
+
+		// a failure may have nothing to do with the query, so it is asked once more on a fresh process
+		@Override
+		public synchronized boolean query(String query) throws IOException {
+			Boolean verdict = this.ask(query);
+			if(verdict == null) {
+				verdict = this.ask(query);
+			}
+			if(verdict == null) {
+				throw new UnknownVerdictException("Oracle process failed twice on the same query: " + this.command);
+			}
+			return verdict;
+		}
+
+		public synchronized long getStarts() {
+			return this.numStarts;
+		}
+
+		public synchronized long getTimeouts() {
+			return this.numTimeouts;
+		}
+
+		@Override
+		public synchronized void close() {
+			this.stop();
+		}
+	}
+
+	public static class PersistentProcessBackendFactory implements BackendFactory {
+		private final String command;
+		private final int restartAfter;
+		private final long timeoutMillis;
+
+		public PersistentProcessBackendFactory(String command, int restartAfter, long timeoutMillis) {
+			this.command = command;
+			this.restartAfter = restartAfter;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		@Override
+		public Backend create(int index) {
+			final PersistentProcessOracle oracle = new PersistentProcessOracle(this.command, this.restartAfter, this.timeoutMillis);
+			return new Backend() {
+				@Override
+				public boolean query(String query) throws IOException {
+					return oracle.query(query);
+				}
+				@Override
+				public boolean isHealthy() {
+					return true;
+				}
+				@Override
+				public void close() {
+					oracle.close();
+				}
+			};
+		}
+	}
 }
@@ -17,6 +17,7 @@ package glade.util;
 import picocli.CommandLine;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -59,7 +60,7 @@ public class Utils {
 		@Override
 		public Set<V> get(Object k) {
 			Set<V> vSet = super.get(k);
-			return vSet == null ? new HashSet<V>() : vSet;
+			return vSet == null ? Collections.<V>emptySet() : vSet;
 		}
 	}
 
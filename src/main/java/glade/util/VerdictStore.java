@@ -0,0 +1,228 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.util;
+
+import glade.util.OracleUtils.QueryHash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Persistent oracle verdicts, stored in a memory-mapped open addressing hash table keyed by query hash.
+//
+// Slots are insert-only: a slot is written key first and checksum last, so a slot torn by a kill is
+// detected by its checksum on reopen and cleared. Growing the table rehashes into a temporary file
+// that atomically replaces the old one, so an interrupted resize leaves the old table intact.
+public class VerdictStore implements Closeable {
+	private static final int MAGIC = 0x474c5653; // "GLVS"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 64;
+	private static final int SLOT_BYTES = 24;
+	private static final int INITIAL_CAPACITY = 1 << 16;
+
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int FINGERPRINT_OFFSET = 16;
+
+	private static final int SLOT_HIGH = 0;
+	private static final int SLOT_LOW = 8;
+	private static final int SLOT_CHECKSUM = 16;
+	private static final int SLOT_VERDICT = 20;
+
+	private final Path path;
+	private final QueryHash fingerprint;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int size;
+
+	// the fingerprint identifies the oracle, verdicts of a different oracle are never replayed
+	public VerdictStore(Path path, QueryHash fingerprint) throws IOException {
+		this.path = path;
+		this.fingerprint = fingerprint;
+		Files.deleteIfExists(getTemporaryPath(path));
+		if(Files.exists(path) && Files.size(path) > 0) {
+			this.open();
+		} else {
+			this.create(path, INITIAL_CAPACITY);
+			this.open();
+		}
+	}
+
+	private static Path getTemporaryPath(Path path) {
+		return Paths.get(path.toString() + ".tmp");
+	}
+
+	private void create(Path target, int capacity) throws IOException {
+		try(FileChannel newChannel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long)capacity * SLOT_BYTES);
+			newBuffer.putInt(MAGIC_OFFSET, MAGIC);
+			newBuffer.putInt(VERSION_OFFSET, VERSION);
+			newBuffer.putInt(CAPACITY_OFFSET, capacity);
+			newBuffer.putLong(FINGERPRINT_OFFSET, this.fingerprint.high);
+			newBuffer.putLong(FINGERPRINT_OFFSET + 8, this.fingerprint.low);
+			newBuffer.force();
+		}
+	}
+
+	private void open() throws IOException {
+		this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if(this.channel.size() < HEADER_BYTES) {
+			throw new IOException("Corrupted oracle verdict store: " + this.path);
+		}
+		this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.channel.size());
+		if(this.buffer.getInt(MAGIC_OFFSET) != MAGIC || this.buffer.getInt(VERSION_OFFSET) != VERSION) {
+			throw new IOException("Not an oracle verdict store: " + this.path);
+		}
+		this.capacity = this.buffer.getInt(CAPACITY_OFFSET);
+		if(Integer.bitCount(this.capacity) != 1 || this.channel.size() != HEADER_BYTES + (long)this.capacity * SLOT_BYTES) {
+			throw new IOException("Corrupted oracle verdict store: " + this.path);
+		}
+		if(this.buffer.getLong(FINGERPRINT_OFFSET) != this.fingerprint.high || this.buffer.getLong(FINGERPRINT_OFFSET + 8) != this.fingerprint.low) {
+			throw new IllegalArgumentException("Oracle verdict store " + this.path + " was created for a different oracle.");
+		}
+		this.size = 0;
+		for(int slot=0; slot<this.capacity; slot++) {
+			int checksum = this.buffer.getInt(getOffset(slot) + SLOT_CHECKSUM);
+			if(checksum == 0) {
+				continue;
+			}
+			if(checksum == getChecksum(this.getHigh(slot), this.getLow(slot), this.getVerdict(slot))) {
+				this.size++;
+			} else {
+				Log.debug("Clearing torn oracle verdict store slot " + slot);
+				this.clear(slot);
+			}
+		}
+	}
+
+	private static int getOffset(int slot) {
+		return HEADER_BYTES + slot * SLOT_BYTES;
+	}
+
+	private static int getChecksum(long high, long low, boolean verdict) {
+		long mix = high * 0x9e3779b97f4a7c15L ^ low * 0xc2b2ae3d27d4eb4fL ^ (verdict ? 0x165667b19e3779f9L : 0L);
+		return (int)(mix ^ (mix >>> 32)) | 1;
+	}
+
+	private long getHigh(int slot) {
+		return this.buffer.getLong(getOffset(slot) + SLOT_HIGH);
+	}
+
+	private long getLow(int slot) {
+		return this.buffer.getLong(getOffset(slot) + SLOT_LOW);
+	}
+
+	private boolean getVerdict(int slot) {
+		return this.buffer.get(getOffset(slot) + SLOT_VERDICT) != 0;
+	}
+
+	private boolean isOccupied(int slot) {
+		return this.buffer.getInt(getOffset(slot) + SLOT_CHECKSUM) != 0;
+	}
+
+	private void clear(int slot) {
+		int offset = getOffset(slot);
+		for(int i=0; i<SLOT_BYTES; i++) {
+			this.buffer.put(offset + i, (byte)0);
+		}
+	}
+
+	private static void write(MappedByteBuffer buffer, int slot, long high, long low, boolean verdict) {
+		int offset = getOffset(slot);
+		buffer.putLong(offset + SLOT_HIGH, high);
+		buffer.putLong(offset + SLOT_LOW, low);
+		buffer.put(offset + SLOT_VERDICT, (byte)(verdict ? 1 : 0));
+		buffer.putInt(offset + SLOT_CHECKSUM, getChecksum(high, low, verdict));
+	}
+
+	private int findSlot(long high, long low) {
+		int mask = this.capacity - 1;
+		int slot = (int)(low ^ (low >>> 32)) & mask;
+		while(this.isOccupied(slot) && (this.getHigh(slot) != high || this.getLow(slot) != low)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	public synchronized Boolean get(QueryHash hash) {
+		int slot = this.findSlot(hash.high, hash.low);
+		return this.isOccupied(slot) ? this.getVerdict(slot) : null;
+	}
+
+	public synchronized void put(QueryHash hash, boolean verdict) throws IOException {
+		int slot = this.findSlot(hash.high, hash.low);
+		if(this.isOccupied(slot)) {
+			return;
+		}
+		if(2 * (this.size + 1) > this.capacity) {
+			this.grow();
+			slot = this.findSlot(hash.high, hash.low);
+		}
+		write(this.buffer, slot, hash.high, hash.low, verdict);
+		this.size++;
+	}
+
+	private void grow() throws IOException {
+		Path temporaryPath = getTemporaryPath(this.path);
+		int newCapacity = 2 * this.capacity;
+		if(HEADER_BYTES + (long)newCapacity * SLOT_BYTES > Integer.MAX_VALUE) {
+			throw new IOException("Oracle verdict store is full: " + this.path);
+		}
+		Log.debug("Growing oracle verdict store to " + newCapacity + " slots");
+		this.create(temporaryPath, newCapacity);
+		try(FileChannel newChannel = FileChannel.open(temporaryPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, newChannel.size());
+			int mask = newCapacity - 1;
+			for(int slot=0; slot<this.capacity; slot++) {
+				if(!this.isOccupied(slot)) {
+					continue;
+				}
+				long high = this.getHigh(slot);
+				long low = this.getLow(slot);
+				int newSlot = (int)(low ^ (low >>> 32)) & mask;
+				while(newBuffer.getInt(getOffset(newSlot) + SLOT_CHECKSUM) != 0) {
+					newSlot = (newSlot + 1) & mask;
+				}
+				write(newBuffer, newSlot, high, low, this.getVerdict(slot));
+			}
+			newBuffer.force();
+		}
+		this.channel.close();
+		Files.move(temporaryPath, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.open();
+	}
+
+	public synchronized int size() {
+		return this.size;
+	}
+
+	public synchronized void flush() {
+		this.buffer.force();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		this.buffer.force();
+		this.channel.close();
+	}
+}
@@ -0,0 +1,133 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import glade.grammar.GrammarUtils.AlternationNode;
+import glade.grammar.GrammarUtils.ConstantNode;
+import glade.grammar.GrammarUtils.Context;
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.GrammarUtils.Node;
+import glade.grammar.GrammarUtils.NodeData;
+import glade.grammar.GrammarUtils.NodeMerges;
+import glade.grammar.GrammarUtils.RepetitionNode;
+import glade.grammar.ParseTreeUtils.ParseTreeNode;
+import glade.grammar.fuzz.GrammarFuzzer.GrammarSampler;
+import glade.grammar.fuzz.GrammarFuzzer.SampleParameters;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.util.CharacterUtils;
+import glade.util.Log;
+import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.Utils.Maybe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class GrammarParserTest {
+	private static final List<String> SEEDS = Arrays.asList("((a+b)+(ab))c", "(a)(b)+a", "a+(c)");
+
+	// balanced parentheses over a, b, c and +
+	private static final DiscriminativeOracle ORACLE = new DiscriminativeOracle() {
+		@Override
+		public boolean query(String query) {
+			int depth = 0;
+			for(char c : query.toCharArray()) {
+				if(c == '(') {
+					depth++;
+				} else if(c == ')') {
+					if(--depth < 0) {
+						return false;
+					}
+				} else if(c != 'a' && c != 'b' && c != 'c' && c != '+') {
+					return false;
+				}
+			}
+			return depth == 0;
+		}
+	};
+
+	@Before
+	public void setUp() {
+		CharacterUtils.init(CharacterUtils.InputAlphabet.ASCII);
+		Log.setLoggingLevel(Log.Level.OFF);
+	}
+
+	private static Node getConstant(String example) {
+		return new ConstantNode(new NodeData(example, new Context()));
+	}
+
+	// all strings over the characters up to the given length, shortest first
+	private static List<String> getStrings(String characters, int maxLength) {
+		List<String> strings = new ArrayList<String>();
+		strings.add("");
+		for(int i=0; i<strings.size() && strings.get(i).length() < maxLength; i++) {
+			for(char c : characters.toCharArray()) {
+				strings.add(strings.get(i) + c);
+			}
+		}
+		return strings;
+	}
+
+	@Test
+	public void testMergedGrammar() {
+		// rep -> ( alt* ), alt -> ab | empty, where ab and rep are merged: rep -> ( (ab | empty | rep)* ) | ab
+		NodeData data = new NodeData("", new Context());
+		Node ab = getConstant("ab");
+		Node rep = new RepetitionNode(data, getConstant("("), new AlternationNode(data, ab, getConstant("")), getConstant(")"));
+		NodeMerges merges = new NodeMerges();
+		merges.add(ab, rep);
+		merges.add(rep, ab);
+		GrammarParser parser = new GrammarParser(new Grammar(rep, merges));
+		Set<String> expected = new HashSet<String>(Arrays.asList("()", "ab", "(())", "(ab)", "((()))", "(()())", "(()ab)", "((ab))", "(ab())", "(abab)"));
+		for(String string : getStrings("()ab", 6)) {
+			assertEquals(string, expected.contains(string), parser.recognize(string));
+			assertEquals(string, expected.contains(string), parser.parse(string).hasT());
+		}
+	}
+
+	@Test
+	public void testLearnedGrammar() {
+		Grammar grammar = GrammarSynthesis.getGrammarMultiple(SEEDS, ORACLE);
+		GrammarParser parser = GrammarParser.get(grammar);
+		assertSame(parser, GrammarParser.get(grammar));
+		for(String seed : SEEDS) {
+			assertTrue(parser.recognize(seed));
+		}
+		GrammarSampler sampler = new GrammarSampler(grammar, new SampleParameters(new double[]{0.2, 0.2, 0.2, 0.4}, 0.2, 0.2, 100), new Random(1));
+		for(int i=0; i<500; i++) {
+			String sample = sampler.next();
+			Maybe<ParseTreeNode> tree = parser.parse(sample);
+			assertTrue(sample, tree.hasT());
+			assertEquals(sample, tree.getT().getExample());
+			assertSame(grammar.node, tree.getT().getNode());
+		}
+		for(String string : getStrings("()ab+c", 4)) {
+			assertEquals(string, parser.recognize(string), parser.parse(string).hasT());
+		}
+		assertFalse(parser.recognize("(a"));
+		assertFalse(parser.recognize("a)"));
+	}
+}
@@ -0,0 +1,180 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import glade.grammar.GrammarUtils.Context;
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.GrammarUtils.NodeData;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.util.CharacterUtils;
+import glade.util.Log;
+import glade.util.OracleUtils.DiscriminativeOracle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class GrammarSerializerTest {
+	private static final List<String> SEEDS = Arrays.asList("((a+b)+(ab))c", "(a)(b)+a", "a+(c)");
+
+	// balanced parentheses over a, b, c and +
+	private static final DiscriminativeOracle ORACLE = new DiscriminativeOracle() {
+		@Override
+		public boolean query(String query) {
+			int depth = 0;
+			for(char c : query.toCharArray()) {
+				if(c == '(') {
+					depth++;
+				} else if(c == ')') {
+					if(--depth < 0) {
+						return false;
+					}
+				} else if(c != 'a' && c != 'b' && c != 'c' && c != '+') {
+					return false;
+				}
+			}
+			return depth == 0;
+		}
+	};
+
+	@Before
+	public void setUp() {
+		CharacterUtils.init(CharacterUtils.InputAlphabet.ASCII);
+		Log.setLoggingLevel(Log.Level.OFF);
+	}
+
+	private static byte[] serialize(Grammar grammar, boolean stripContexts) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GrammarSerializer.serialize(grammar, stripContexts, new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	private static Grammar deserialize(byte[] bytes) throws IOException {
+		return GrammarSerializer.deserializeNodeWithMerges(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	private static int getNumMerges(Grammar grammar) {
+		int numMerges = 0;
+		for(int i=0; i<grammar.merges.size(); i++) {
+			numMerges += grammar.merges.getNumMerges(i);
+		}
+		return numMerges;
+	}
+
+	// the strings of the list the grammar accepts
+	private static List<String> getAccepted(Grammar grammar, List<String> strings) {
+		GrammarParser parser = new GrammarParser(grammar);
+		List<String> accepted = new ArrayList<String>();
+		for(String string : strings) {
+			if(parser.recognize(string)) {
+				accepted.add(string);
+			}
+		}
+		return accepted;
+	}
+
+	// all strings over the characters up to the given length, shortest first
+	private static List<String> getStrings(String characters, int maxLength) {
+		List<String> strings = new ArrayList<String>();
+		strings.add("");
+		for(int i=0; i<strings.size() && strings.get(i).length() < maxLength; i++) {
+			for(char c : characters.toCharArray()) {
+				strings.add(strings.get(i) + c);
+			}
+		}
+		return strings;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Grammar grammar = GrammarSynthesis.getGrammarMultiple(SEEDS, ORACLE);
+		byte[] bytes = serialize(grammar, false);
+		Grammar loadedGrammar = deserialize(bytes);
+		assertFalse(GrammarSerializer.isStripped(loadedGrammar));
+		assertEquals(new CompactGrammar(grammar).size(), new CompactGrammar(loadedGrammar).size());
+		assertEquals(getNumMerges(grammar), getNumMerges(loadedGrammar));
+		assertArrayEquals(bytes, serialize(loadedGrammar, false));
+		// contexts survive, they are needed to extend the grammar
+		assertEquals(grammar.node.getChildren().get(0).getChildren().get(0).getData().getContext().getPost(),
+				loadedGrammar.node.getChildren().get(0).getChildren().get(0).getData().getContext().getPost());
+		List<String> strings = getStrings("()ab+c", 5);
+		assertEquals(getAccepted(grammar, strings), getAccepted(loadedGrammar, strings));
+	}
+
+	@Test
+	public void testStrippedRoundTrip() throws IOException {
+		Grammar grammar = GrammarSynthesis.getGrammarMultiple(SEEDS, ORACLE);
+		byte[] bytes = serialize(grammar, true);
+		assertTrue(bytes.length < serialize(grammar, false).length);
+		Grammar loadedGrammar = deserialize(bytes);
+		assertTrue(GrammarSerializer.isStripped(loadedGrammar));
+		assertArrayEquals(bytes, serialize(loadedGrammar, true));
+		List<String> strings = getStrings("()ab+c", 5);
+		assertEquals(getAccepted(grammar, strings), getAccepted(loadedGrammar, strings));
+	}
+
+	// rep -> ( alt* ), alt -> ab | empty, where ab and rep are merged, written node by node as version 1 did
+	private static byte[] getVersion1Grammar() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bytes);
+		GrammarSerializer.serialize("ASCII", dos);
+		dos.writeInt(6);
+		String[] examples = {"(ab)", "(", "ab", "ab", "", ")"};
+		int[][] children = {{3, 1, 2, 5}, {0}, {1, 3, 4}, {0}, {0}, {0}};
+		for(int i=0; i<examples.length; i++) {
+			dos.writeInt(i);
+			GrammarSerializer.serialize(new NodeData(examples[i], new Context("pre", "post", "pre", "post")), dos);
+			for(int child : children[i]) {
+				dos.writeInt(child);
+			}
+		}
+		dos.writeInt(2);
+		dos.writeInt(1);
+		dos.writeInt(3);
+		dos.writeInt(0);
+		dos.writeInt(1);
+		dos.writeInt(0);
+		dos.writeInt(3);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testVersion1IsLoaded() throws IOException {
+		Grammar grammar = deserialize(getVersion1Grammar());
+		assertEquals("pre", grammar.node.getData().getContext().getPre());
+		List<String> strings = getStrings("()ab", 6);
+		List<String> expected = Arrays.asList("()", "ab", "(())", "(ab)", "((()))", "(()())", "(()ab)", "((ab))", "(ab())", "(abab)");
+		assertEquals(expected, getAccepted(grammar, strings));
+		// saved again in the current version
+		byte[] bytes = serialize(grammar, false);
+		assertEquals(0x474c4144, new DataInputStream(new ByteArrayInputStream(bytes)).readInt());
+		Grammar loadedGrammar = deserialize(bytes);
+		assertEquals("post", loadedGrammar.node.getData().getContext().getPost());
+		assertEquals(expected, getAccepted(loadedGrammar, strings));
+	}
+}
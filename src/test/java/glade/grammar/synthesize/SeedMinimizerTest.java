@@ -0,0 +1,71 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar.synthesize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import glade.util.Log;
+import glade.util.OracleUtils.DiscriminativeOracle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SeedMinimizerTest {
+	private static final String SEED = "Model {\n  Name \"m\"\n  Block {\n    Name \"b\"\n    Gain \"2\"\n  }\n  Block {\n    Name \"c\"\n  }\n}\n";
+
+	// balanced braces and a gain somewhere
+	private static final DiscriminativeOracle ORACLE = new DiscriminativeOracle() {
+		@Override
+		public boolean query(String query) {
+			int depth = 0;
+			for(char c : query.toCharArray()) {
+				if(c == '{') {
+					depth++;
+				} else if(c == '}' && --depth < 0) {
+					return false;
+				}
+			}
+			return depth == 0 && query.contains("Gain");
+		}
+	};
+
+	@Before
+	public void setUp() {
+		Log.setLoggingLevel(Log.Level.OFF);
+	}
+
+	@Test
+	public void testResultIsOneMinimal() throws Exception {
+		String minSeed = SeedMinimizer.minimize(SEED, ORACLE);
+		assertTrue(ORACLE.query(minSeed));
+		assertFalse(minSeed.contains("Name"));
+		// removing any single character makes the seed invalid
+		for(int i=0; i<minSeed.length(); i++) {
+			assertFalse(ORACLE.query(minSeed.substring(0, i) + minSeed.substring(i+1)));
+		}
+	}
+
+	@Test
+	public void testValidSeedIsKept() {
+		assertEquals("Gain", SeedMinimizer.minimize("Gain", ORACLE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectedSeed() {
+		SeedMinimizer.minimize("Model {\n", ORACLE);
+	}
+}
@@ -0,0 +1,174 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar.synthesize;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import glade.grammar.GrammarParser;
+import glade.grammar.GrammarSerializer;
+import glade.grammar.GrammarUtils.Grammar;
+import glade.util.CharacterUtils;
+import glade.util.Log;
+import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.OracleUtils.PersistentDiscriminativeOracle;
+import glade.util.OracleUtils.QueryHash;
+import glade.util.VerdictStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SynthesisCheckpointTest {
+	private static final List<String> SEEDS = Arrays.asList("((a+b)+(ab))c", "(a)(b)+a", "a+(c)");
+
+	// balanced parentheses over a, b, c and +, fails like a killed run once its budget is used up
+	private static class ParenthesesOracle implements DiscriminativeOracle {
+		private final int budget;
+		private int numQueries = 0;
+		private ParenthesesOracle(int budget) {
+			this.budget = budget;
+		}
+		@Override
+		public boolean query(String query) throws IOException {
+			if(++this.numQueries > this.budget) {
+				throw new IOException("Oracle killed");
+			}
+			int depth = 0;
+			for(char c : query.toCharArray()) {
+				if(c == '(') {
+					depth++;
+				} else if(c == ')') {
+					if(--depth < 0) {
+						return false;
+					}
+				} else if(c != 'a' && c != 'b' && c != 'c' && c != '+') {
+					return false;
+				}
+			}
+			return depth == 0;
+		}
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setUp() {
+		CharacterUtils.init(CharacterUtils.InputAlphabet.ASCII);
+		Log.setLoggingLevel(Log.Level.OFF);
+	}
+
+	private static byte[] serialize(Grammar grammar) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GrammarSerializer.serialize(grammar, new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	// the oracle is wrapped like learn --checkpoint does, verdicts are journaled in the checkpoint directory
+	private static Grammar learn(Path directory, DiscriminativeOracle oracle) throws IOException {
+		VerdictStore journal = new VerdictStore(SynthesisCheckpoint.getJournalPath(directory), QueryHash.of("parentheses"));
+		SynthesisCheckpoint checkpoint = new SynthesisCheckpoint(directory, SEEDS, journal);
+		try {
+			return GrammarSynthesis.getGrammarMultiple(SEEDS, new PersistentDiscriminativeOracle(oracle, journal), checkpoint);
+		} finally {
+			checkpoint.close();
+			journal.close();
+		}
+	}
+
+	// Synthesis is only deterministic up to the iteration order of node sets, which follows identity hash codes,
+	// so grammars of different runs are compared by the strings they accept, here all strings up to length 5.
+	private static BitSet getLanguage(Grammar grammar) {
+		GrammarParser parser = GrammarParser.get(grammar);
+		List<String> strings = new ArrayList<String>();
+		strings.add("");
+		for(int i=0; i<strings.size() && strings.get(i).length() < 5; i++) {
+			for(char c : "()ab+c".toCharArray()) {
+				strings.add(strings.get(i) + c);
+			}
+		}
+		BitSet language = new BitSet();
+		for(int i=0; i<strings.size(); i++) {
+			language.set(i, parser.recognize(strings.get(i)));
+		}
+		return language;
+	}
+
+	@Test
+	public void testResumeAfterPartialCheckpoint() throws IOException {
+		ParenthesesOracle fullOracle = new ParenthesesOracle(Integer.MAX_VALUE);
+		BitSet expected = getLanguage(GrammarSynthesis.getGrammarMultiple(SEEDS, fullOracle));
+
+		Path directory = this.folder.newFolder("checkpoint").toPath();
+		try {
+			learn(directory, new ParenthesesOracle(fullOracle.numQueries/2));
+			fail("Expected the killed oracle to stop synthesis");
+		} catch(RuntimeException e) {
+			// the run is interrupted with some of the roots finished
+		}
+		assertTrue(Files.exists(directory.resolve("root0.gram")));
+		assertFalse(Files.exists(directory.resolve("root" + (SEEDS.size()-1) + ".gram")));
+
+		ParenthesesOracle resumedOracle = new ParenthesesOracle(Integer.MAX_VALUE);
+		Grammar resumed = learn(directory, resumedOracle);
+		assertEquals(expected, getLanguage(resumed));
+		// the finished roots and the journaled verdicts are not asked again
+		assertTrue(resumedOracle.numQueries < fullOracle.numQueries - fullOracle.numQueries/2);
+
+		// a finished run is restored without any query
+		assertArrayEquals(serialize(resumed), serialize(learn(directory, new ParenthesesOracle(0))));
+	}
+
+	@Test
+	public void testTornMergesRecordIsDropped() throws IOException {
+		Path directory = this.folder.newFolder("checkpoint").toPath();
+		learn(directory, new ParenthesesOracle(Integer.MAX_VALUE));
+		Path mergesPath = directory.resolve("merges.log");
+		long length = Files.size(mergesPath);
+		// the pair and merge count of a record, without its merges
+		Files.write(mergesPath, new byte[] {0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 5}, StandardOpenOption.APPEND);
+		new SynthesisCheckpoint(directory, SEEDS, null).close();
+		assertEquals(length, Files.size(mergesPath));
+	}
+
+	@Test
+	public void testCheckpointOfDifferentSeedsIsDiscarded() throws IOException {
+		Path directory = this.folder.newFolder("checkpoint").toPath();
+		learn(directory, new ParenthesesOracle(Integer.MAX_VALUE));
+		List<String> otherSeeds = Arrays.asList("(c)", "(a)(b)+a", "a+(c)");
+		SynthesisCheckpoint checkpoint = new SynthesisCheckpoint(directory, otherSeeds, null);
+		assertFalse(checkpoint.getRoot(0).hasT());
+		assertTrue(checkpoint.getRoot(1).hasT());
+		checkpoint.close();
+		// only the header of the new seed list is left in the merges log
+		assertEquals(16, Files.size(directory.resolve("merges.log")));
+	}
+}
@@ -0,0 +1,105 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import glade.util.OracleUtils.CachedDiscriminativeOracle;
+import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.OracleUtils.TolerantDiscriminativeOracle;
+import glade.util.OracleUtils.UnknownVerdictException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OracleUtilsTest {
+	// accepts queries of even length and records every query it is asked
+	private static class RecordingOracle implements DiscriminativeOracle {
+		private final List<String> queries = new ArrayList<String>();
+		@Override
+		public boolean query(String query) {
+			this.queries.add(query);
+			return query.length() % 2 == 0;
+		}
+	}
+
+	// room for two entries
+	private static final long TWO_ENTRIES = 2*96;
+
+	@Test
+	public void testCacheHits() throws IOException {
+		RecordingOracle oracle = new RecordingOracle();
+		CachedDiscriminativeOracle cache = new CachedDiscriminativeOracle(oracle, TWO_ENTRIES);
+		assertTrue(cache.query("ab"));
+		assertFalse(cache.query("a"));
+		assertTrue(cache.query("ab"));
+		assertFalse(cache.query("a"));
+		assertEquals(2, oracle.queries.size());
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testCacheEvictsLeastRecentlyUsed() throws IOException {
+		RecordingOracle oracle = new RecordingOracle();
+		CachedDiscriminativeOracle cache = new CachedDiscriminativeOracle(oracle, TWO_ENTRIES);
+		cache.query("a");
+		cache.query("b");
+		cache.query("a");
+		// evicts b, which has been used less recently than a
+		cache.query("c");
+		assertEquals(2, cache.size());
+		cache.query("a");
+		assertEquals(3, oracle.queries.size());
+		cache.query("b");
+		assertEquals(4, oracle.queries.size());
+		assertEquals("b", oracle.queries.get(3));
+	}
+
+	@Test
+	public void testUnknownVerdictIsNotCached() throws IOException {
+		final int[] numQueries = new int[1];
+		DiscriminativeOracle flaky = new DiscriminativeOracle() {
+			@Override
+			public boolean query(String query) throws IOException {
+				if(numQueries[0]++ == 0) {
+					throw new UnknownVerdictException("Oracle crashed");
+				}
+				return true;
+			}
+		};
+		DiscriminativeOracle oracle = new TolerantDiscriminativeOracle(new CachedDiscriminativeOracle(flaky, TWO_ENTRIES));
+		assertFalse(oracle.query("a"));
+		assertTrue(oracle.query("a"));
+		assertTrue(oracle.query("a"));
+		assertEquals(2, numQueries[0]);
+	}
+
+	@Test
+	public void testQueryAllStopsAtFirstInvalidQuery() throws IOException {
+		RecordingOracle oracle = new RecordingOracle();
+		List<String> queries = new ArrayList<String>();
+		queries.add("ab");
+		queries.add("a");
+		queries.add("abcd");
+		assertFalse(oracle.queryAll(queries));
+		assertEquals(2, oracle.queries.size());
+	}
+}
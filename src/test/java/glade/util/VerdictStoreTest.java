@@ -0,0 +1,115 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import glade.util.OracleUtils.QueryHash;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VerdictStoreTest {
+	private static final QueryHash FINGERPRINT = QueryHash.of("oracle");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path getPath() {
+		return this.folder.getRoot().toPath().resolve("verdicts.store");
+	}
+
+	private static boolean getVerdict(int i) {
+		return i % 3 == 0;
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		VerdictStore store = new VerdictStore(this.getPath(), FINGERPRINT);
+		store.put(QueryHash.of("valid"), true);
+		store.put(QueryHash.of("invalid"), false);
+		// verdicts are never overwritten
+		store.put(QueryHash.of("valid"), false);
+		store.close();
+		store = new VerdictStore(this.getPath(), FINGERPRINT);
+		assertEquals(2, store.size());
+		assertEquals(Boolean.TRUE, store.get(QueryHash.of("valid")));
+		assertEquals(Boolean.FALSE, store.get(QueryHash.of("invalid")));
+		assertNull(store.get(QueryHash.of("unknown")));
+		store.close();
+	}
+
+	@Test
+	public void testGrow() throws IOException {
+		VerdictStore store = new VerdictStore(this.getPath(), FINGERPRINT);
+		long initialSize = Files.size(this.getPath());
+		// more than half of the initial 2^16 slots
+		int numVerdicts = 40000;
+		for(int i=0; i<numVerdicts; i++) {
+			store.put(QueryHash.of("query" + i), getVerdict(i));
+		}
+		assertTrue(Files.size(this.getPath()) > initialSize);
+		assertFalse(Files.exists(this.getPath().resolveSibling("verdicts.store.tmp")));
+		for(int i=0; i<numVerdicts; i++) {
+			assertEquals(getVerdict(i), store.get(QueryHash.of("query" + i)));
+		}
+		store.close();
+		store = new VerdictStore(this.getPath(), FINGERPRINT);
+		assertEquals(numVerdicts, store.size());
+		for(int i=0; i<numVerdicts; i++) {
+			assertEquals(getVerdict(i), store.get(QueryHash.of("query" + i)));
+		}
+		store.close();
+	}
+
+	@Test
+	public void testTornSlotIsCleared() throws IOException {
+		VerdictStore store = new VerdictStore(this.getPath(), FINGERPRINT);
+		store.put(QueryHash.of("valid"), true);
+		store.close();
+		// flip the verdict of the only occupied slot (24 byte slots after a 64 byte header, verdict at 20) without
+		// updating its checksum (at 16), as if the process had been killed while writing it
+		try(RandomAccessFile file = new RandomAccessFile(this.getPath().toFile(), "rw")) {
+			for(long offset=64; offset<file.length(); offset+=24) {
+				file.seek(offset + 16);
+				if(file.readInt() != 0) {
+					file.seek(offset + 20);
+					file.writeByte(0);
+				}
+			}
+		}
+		store = new VerdictStore(this.getPath(), FINGERPRINT);
+		assertEquals(0, store.size());
+		assertNull(store.get(QueryHash.of("valid")));
+		store.put(QueryHash.of("valid"), true);
+		assertEquals(Boolean.TRUE, store.get(QueryHash.of("valid")));
+		store.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDifferentOracleIsRejected() throws IOException {
+		new VerdictStore(this.getPath(), FINGERPRINT).close();
+		new VerdictStore(this.getPath(), QueryHash.of("other oracle"));
+	}
+}